@@ -0,0 +1,66 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eit.sdn.sdncontroller.core.IpAddressUtil;
+
+/**
+ * Conversion of the dhcp gateway, done for every reply to the agent.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IpAddressBenchmark {
+
+    // 192.168.1.1 in little-endian
+    int gateway = 0x0101a8c0;
+
+    @Benchmark
+    public String littleEndianIntToIpAddress() {
+        return IpAddressUtil.littleEndianIntToIpAddress(gateway);
+    }
+
+    @Benchmark
+    public String littleEndianIntToIpAddressLegacy() {
+        int ip = gateway;
+        StringBuilder ipAddress = new StringBuilder();
+        for (int i = 0; i <= 3; i++) {
+            int shift = i * 8;
+            ipAddress.append((ip & (0xff << shift)) >> shift);
+            if (i < 3) {
+                ipAddress.append(".");
+            }
+        }
+        return ipAddress.toString();
+    }
+}
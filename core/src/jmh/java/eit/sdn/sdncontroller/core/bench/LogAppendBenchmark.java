@@ -0,0 +1,143 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eit.sdn.sdncontroller.core.LogRecordEncoder;
+
+/**
+ * Logging one wifi scan: a line per access point appended to the scan log.
+ *
+ * The legacy variants format the timestamp for every line and open the
+ * file for every line, as SDNCommonUtil.writeToExternalFile is called per
+ * line; the new ones encode with LogRecordEncoder and append the scan at
+ * once.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogAppendBenchmark {
+
+    @Param({"20"})
+    int accessPoints;
+
+    LogRecordEncoder encoder = new LogRecordEncoder(Locale.US);
+    String[] ssids;
+    String[] bssids;
+    String[] levels;
+    File file;
+
+    @Setup
+    public void setup() throws IOException {
+        ssids = new String[accessPoints];
+        bssids = new String[accessPoints];
+        levels = new String[accessPoints];
+        for (int i = 0; i < accessPoints; i++) {
+            ssids[i] = "ap-" + i;
+            bssids[i] = String.format("00:11:22:33:44:%02x", i);
+            levels[i] = Integer.toString(-40 - i);
+        }
+        file = File.createTempFile("scan-log", ".txt");
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws IOException {
+        new FileOutputStream(file).close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public String encodeScan() {
+        return encode();
+    }
+
+    @Benchmark
+    public String encodeScanLegacy() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < accessPoints; i++) {
+            SimpleDateFormat format = new SimpleDateFormat(LogRecordEncoder.TIMESTAMP_FORMAT, Locale.US);
+            String timestamp = "[" + format.format(new Date()) + "] ";
+            sb.append(timestamp + ssids[i] + " | " + bssids[i] + " | " + levels[i]);
+        }
+        return sb.toString();
+    }
+
+    @Benchmark
+    public void appendScan() throws IOException {
+        append(encode());
+    }
+
+    @Benchmark
+    public void appendScanLegacy() throws IOException {
+        for (int i = 0; i < accessPoints; i++) {
+            SimpleDateFormat format = new SimpleDateFormat(LogRecordEncoder.TIMESTAMP_FORMAT, Locale.US);
+            String timestamp = "[" + format.format(new Date()) + "] ";
+            append(timestamp + ssids[i] + " | " + bssids[i] + " | " + levels[i]);
+        }
+    }
+
+    private String encode() {
+        StringBuilder sb = new StringBuilder(64 * accessPoints);
+        for (int i = 0; i < accessPoints; i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            encoder.append(sb, System.currentTimeMillis(), ssids[i], bssids[i], levels[i]);
+        }
+        return sb.toString();
+    }
+
+    /* same as SDNCommonUtil.writeToExternalFile */
+    private void append(String data) throws IOException {
+        FileOutputStream f = new FileOutputStream(file, true);
+        PrintWriter pw = new PrintWriter(f);
+        pw.println(data);
+        pw.flush();
+        pw.close();
+        f.close();
+    }
+}
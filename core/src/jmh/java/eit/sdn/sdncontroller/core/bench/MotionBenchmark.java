@@ -0,0 +1,106 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core.bench;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eit.sdn.sdncontroller.core.MotionWindow;
+
+/**
+ * One motion detection: 12 accelerometer samples added to the window and
+ * the static check, with the window and with the boxed lists it replaced.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MotionBenchmark {
+
+    float[][] samples = new float[MotionWindow.DEFAULT_SAMPLES][3];
+    MotionWindow window = new MotionWindow();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (float[] s: samples) {
+            s[0] = 0.02f * random.nextFloat();
+            s[1] = 0.02f * random.nextFloat();
+            s[2] = 9.81f + 0.02f * random.nextFloat();
+        }
+    }
+
+    @Benchmark
+    public boolean evaluate() {
+        window.clear();
+        for (float[] s: samples) {
+            window.add(s[0], s[1], s[2]);
+        }
+        return window.isStatic();
+    }
+
+    @Benchmark
+    public boolean evaluateLegacy() {
+        List<Float> valueX = new LinkedList<Float>();
+        List<Float> valueY = new LinkedList<Float>();
+        List<Float> valueZ = new LinkedList<Float>();
+        for (float[] s: samples) {
+            valueX.add(s[0]);
+            valueY.add(s[1]);
+            valueZ.add(s[2]);
+        }
+        return getStdDev(getMean(valueX), valueX) < 0.1
+                && getStdDev(getMean(valueY), valueY) < 0.1
+                && getStdDev(getMean(valueZ), valueZ) < 0.1;
+    }
+
+    private static double getMean(List<Float> values) {
+        double sum = 0;
+        int size = 0;
+        for (double value: values) {
+            sum += value;
+            size += 1;
+        }
+        return sum / size;
+    }
+
+    private static double getStdDev(double mean, List<Float> values) {
+        double temp = 0;
+        int size = 0;
+        for (double value: values) {
+            temp += (mean - value) * (mean - value);
+            size += 1;
+        }
+        return Math.sqrt(temp / size);
+    }
+}
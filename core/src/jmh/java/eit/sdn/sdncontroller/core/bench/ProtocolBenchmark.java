@@ -0,0 +1,101 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eit.sdn.sdncontroller.core.AgentMessage;
+import eit.sdn.sdncontroller.core.AgentReply;
+
+/**
+ * Parsing of received agent messages and encoding of the scan reply, each
+ * next to the code it replaced.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"20"})
+    int accessPoints;
+
+    String message = "switch|eit-sdn-ap2|wpa|secret-passphrase|00:11:22:33:44:55";
+    String mac = "a0:b1:c2:d3:e4:f5";
+    String[] ssids;
+    String[] bssids;
+    int[] levels;
+
+    @Setup
+    public void setup() {
+        ssids = new String[accessPoints];
+        bssids = new String[accessPoints];
+        levels = new int[accessPoints];
+        for (int i = 0; i < accessPoints; i++) {
+            ssids[i] = "ap-" + i;
+            bssids[i] = String.format("00:11:22:33:44:%02x", i);
+            levels[i] = -40 - i;
+        }
+    }
+
+    @Benchmark
+    public AgentMessage parse() {
+        return AgentMessage.parse(message);
+    }
+
+    @Benchmark
+    public String parseLegacy() {
+        String[] fields = message.split("\\|");
+        return fields[0].toLowerCase();
+    }
+
+    @Benchmark
+    public String encodeScanReply() {
+        AgentReply reply = new AgentReply("scan", mac).add("static");
+        for (int i = 0; i < accessPoints; i++) {
+            reply.add(ssids[i], bssids[i], levels[i]);
+        }
+        return reply.toString();
+    }
+
+    @Benchmark
+    public String encodeScanReplyLegacy() {
+        StringBuilder scanResult = new StringBuilder();
+        scanResult.append("s|scan|");
+        scanResult.append(mac);
+        scanResult.append("|static");
+        for (int i = 0; i < accessPoints; i++) {
+            scanResult.append("|" + ssids[i] + "&" + bssids[i] + "&" + levels[i]);
+        }
+        return scanResult.toString();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package eit.sdn.sdncontroller.core.bench;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eit.sdn.sdncontroller.core.AgentReply;
+import eit.sdn.sdncontroller.core.ApScorer;
+
+/**
+ * A scan reply of 30 aps: ranked on the device with the top 5 sent, and
+ * the unranked reply with all aps it replaces when k is given.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScoringBenchmark {
+
+    static final int APS = 30;
+
+    ApScorer scorer = new ApScorer();
+    List<ApScorer.Candidate> candidates = new ArrayList<ApScorer.Candidate>();
+    Set<String> configured = new HashSet<String>();
+    long now;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int i = 0; i < APS; i++) {
+            String bssid = String.format("00:11:22:33:44:%02x", i);
+            int level = -90 + random.nextInt(55);
+            candidates.add(new ApScorer.Candidate("ssid-" + (i % 8), bssid, level));
+            for (int t = 0; t < ApScorer.LEVEL_SAMPLES; t++) {
+                scorer.observe(bssid, level + random.nextInt(7) - 3, t * 2000L);
+            }
+            if (i % 3 == 0) {
+                scorer.recordOutcome(bssid, random.nextBoolean());
+            }
+        }
+        configured.add("ssid-1");
+        configured.add("ssid-4");
+        now = ApScorer.LEVEL_SAMPLES * 2000L;
+    }
+
+    @Benchmark
+    public String rankTop5() {
+        AgentReply reply = new AgentReply("scan", "00:aa:bb:cc:dd:ee").add("other");
+        for (ApScorer.Candidate c: scorer.rank(candidates, configured, true, now, 5)) {
+            reply.add(c.ssid + "&" + c.bssid + "&" + c.level + "&" + Math.round(c.score * 1000) / 1000.0);
+        }
+        return reply.toString();
+    }
+
+    @Benchmark
+    public String allLegacy() {
+        AgentReply reply = new AgentReply("scan", "00:aa:bb:cc:dd:ee").add("other");
+        for (ApScorer.Candidate c: candidates) {
+            reply.add(c.ssid, c.bssid, c.level);
+        }
+        return reply.toString();
+    }
+}
@@ -0,0 +1,81 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package eit.sdn.sdncontroller.core.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eit.sdn.sdncontroller.core.ThroughputModel;
+
+/**
+ * Updates and predictions of the throughput model over 5000 aps, more
+ * than it keeps, so observe() also pays for dropping the eldest ap.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThroughputModelBenchmark {
+
+    static final int APS = 5000;
+
+    ThroughputModel model = new ThroughputModel();
+    String[] bssids = new String[APS];
+    int[] levels = new int[1024];
+    int i = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        for (int n = 0; n < APS; n++) {
+            bssids[n] = String.format("00:11:22:%02x:%02x:%02x", n >> 16, (n >> 8) & 0xff, n & 0xff);
+        }
+        for (int n = 0; n < levels.length; n++) {
+            levels[n] = -95 + random.nextInt(60);
+        }
+        for (int n = 0; n < APS; n++) {
+            model.observe(bssids[n], levels[n % levels.length], 500000, 1);
+        }
+    }
+
+    @Benchmark
+    public void observe() {
+        i++;
+        model.observe(bssids[i % APS], levels[i % levels.length], 100000 + i % 1000000, 1);
+    }
+
+    @Benchmark
+    public long predict() {
+        i++;
+        return model.predict(bssids[i % APS], levels[i % levels.length]).rate;
+    }
+}
@@ -0,0 +1,208 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import android.app.ActivityManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Environment;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Classify the running services into traffic classes, e.g. "download" or
+ * "youtube".
+ *
+ * The rules are loaded once from R.array.app_class_rules, or from
+ * SDNController/app-rules.txt on external storage if that file exists. Each
+ * rule is written as "traffic_class=regex" and the regex is compiled only
+ * once. Earlier rules have higher priority.
+ *
+ * The result is cached for CACHE_TTL_MS and dropped as soon as a package is
+ * added, removed or changed.
+ *
+ */
+public class AppClassifier {
+
+    public static final String CLASS_TRIVIAL = "trivial";
+
+    private Context context;
+    private List<String> classes = new ArrayList<String>();
+    private List<Matcher> matchers = new ArrayList<Matcher>();
+    private PackageChangeReceiver packageChangeReceiver = null;
+
+    // cached result
+    private String cachedClass = null;
+    private long cachedTime = 0;
+
+    // defaults
+    private String LOG_TAG = SDNCommonUtil.LOG_TAG;
+    private String RULE_FILE = "/SDNController/app-rules.txt";
+    private long CACHE_TTL_MS = 2000;
+
+
+    // drop the cached result when installed packages change
+    private class PackageChangeReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            invalidate();
+        }
+    }
+
+    public AppClassifier(Context c) {
+        context = c;
+        loadRules();
+    }
+
+    /**
+     * start listening to package changes
+     */
+    public void start() {
+        if (packageChangeReceiver == null) {
+            packageChangeReceiver = new PackageChangeReceiver();
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+            filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+            filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+            filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+            filter.addDataScheme("package");
+            context.registerReceiver(packageChangeReceiver, filter);
+        }
+    }
+
+    public void stop() {
+        if (packageChangeReceiver != null) {
+            context.unregisterReceiver(packageChangeReceiver);
+            packageChangeReceiver = null;
+        }
+    }
+
+    public synchronized void invalidate() {
+        cachedClass = null;
+    }
+
+    /**
+     * Returns the traffic class of the running services
+     *
+     * @return class name of the highest priority rule matching any running
+     *         service, or CLASS_TRIVIAL if none matches
+     */
+    public synchronized String classify() {
+        long now = SystemClock.elapsedRealtime();
+        if (cachedClass != null && now - cachedTime < CACHE_TTL_MS) {
+            return cachedClass;
+        }
+
+        ActivityManager activityManager = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+        List<ActivityManager.RunningServiceInfo> services = activityManager.getRunningServices(Integer.MAX_VALUE);
+
+        int best = matchers.size();
+        if (services != null) {
+            for (ActivityManager.RunningServiceInfo i: services) {
+                String name = i.service.toShortString();
+                // only rules with a higher priority than the current one
+                for (int r = 0; r < best; r++) {
+                    if (matchers.get(r).reset(name).matches()) {
+                        Log.d(LOG_TAG, "running service: " + name);
+                        best = r;
+                        break;
+                    }
+                }
+                if (best == 0) {
+                    break;
+                }
+            }
+        }
+
+        cachedClass = best < matchers.size() ? classes.get(best) : CLASS_TRIVIAL;
+        cachedTime = now;
+        return cachedClass;
+    }
+
+    private void loadRules() {
+        List<String> rules = readRuleFile();
+        if (rules == null) {
+            rules = new ArrayList<String>();
+            for (String rule: context.getResources().getStringArray(R.array.app_class_rules)) {
+                rules.add(rule);
+            }
+        }
+
+        for (String rule: rules) {
+            rule = rule.trim();
+            int pos = rule.indexOf('=');
+            if (rule.equals("") || rule.startsWith("#")) {
+                continue;
+            } else if (pos <= 0) {
+                Log.w(LOG_TAG, "illegal app rule, ignore it: " + rule);
+                continue;
+            }
+
+            try {
+                Pattern p = Pattern.compile(rule.substring(pos + 1));
+                matchers.add(p.matcher(""));
+                classes.add(rule.substring(0, pos).trim());
+            } catch (PatternSyntaxException e) {
+                Log.w(LOG_TAG, "illegal app rule regex, ignore it: " + rule);
+            }
+        }
+        Log.i(LOG_TAG, "loaded " + matchers.size() + " app classification rules");
+    }
+
+    /* Returns the lines of the rule file on external storage, or null */
+    private List<String> readRuleFile() {
+        if (!SDNCommonUtil.isExternalStorageWritable()) {
+            return null;
+        }
+
+        File file = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + RULE_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "failed to read " + RULE_FILE + ", use default rules");
+            return null;
+        } finally {
+            try {
+                if (reader != null)
+                    reader.close();
+            } catch (IOException ignored) {}
+        }
+        return lines;
+    }
+}
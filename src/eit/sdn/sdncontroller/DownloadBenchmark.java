@@ -0,0 +1,260 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Download the same file several times and report the distribution of
+ * throughput and time to first byte, so two access points can be compared
+ * with more than one sample each.
+ *
+ * Warm-up runs are downloaded but not counted. With keep-alive, runs reuse
+ * the connection of the previous run, so TTFB does not include the TCP
+ * handshake. Every run records the signal level at its start.
+ *
+ * Only java.net is used, the same benchmark can run on a normal JVM
+ * against tools/HttpStandIn.
+ *
+ */
+public class DownloadBenchmark {
+
+    private String url;
+    private String path;
+    private int runs = 5;
+    private int warmupRuns = 1;
+    private boolean isKeepAlive = false;
+    private long pauseMs = 1000;
+    private volatile boolean isCancelled = false;
+    private volatile ResumableDownload download = null;
+    private SignalSource signalSource = null;
+
+    /**
+     * signal level of the current network, e.g. wifi rssi
+     */
+    public interface SignalSource {
+        String getSignalLevel();
+    }
+
+    /**
+     * one measured run
+     */
+    public static class Run {
+        public final long bytes;
+        public final long durationMs;
+        public final long ttfbMs;
+        public final long rate;      // bytes per second
+        public final String signal;
+        public final boolean isCompleted;
+
+        Run(long bytes, long durationMs, long ttfbMs, String signal, boolean isCompleted) {
+            this.bytes = bytes;
+            this.durationMs = durationMs;
+            this.ttfbMs = ttfbMs;
+            this.rate = durationMs > 0 ? bytes * 1000 / durationMs : 0;
+            this.signal = signal;
+            this.isCompleted = isCompleted;
+        }
+    }
+
+    /**
+     * @param url file to be downloaded
+     * @param path local file, deleted after every run
+     */
+    public DownloadBenchmark(String url, String path) {
+        this.url = url;
+        this.path = path;
+    }
+
+    public void setRuns(int runs, int warmupRuns) {
+        this.runs = Math.max(1, runs);
+        this.warmupRuns = Math.max(0, warmupRuns);
+    }
+
+    public void setKeepAlive(boolean isKeepAlive) {
+        this.isKeepAlive = isKeepAlive;
+    }
+
+    public void setPauseMs(long pauseMs) {
+        this.pauseMs = Math.max(0, pauseMs);
+    }
+
+    public void setSignalSource(SignalSource signalSource) {
+        this.signalSource = signalSource;
+    }
+
+    public void cancel() {
+        isCancelled = true;
+        ResumableDownload d = download;
+        if (d != null) {
+            d.cancel();
+        }
+    }
+
+    /**
+     * run warm-up and measured runs
+     *
+     * @return the measured runs, fewer if cancelled
+     * @throws FileNotFoundException if the server does not have the file
+     */
+    public List<Run> run() throws FileNotFoundException {
+        List<Run> results = new ArrayList<Run>();
+        for (int i = 0; i < warmupRuns + runs && !isCancelled; i++) {
+            if (i > 0 && pauseMs > 0) {
+                try {
+                    Thread.sleep(pauseMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            Run r = runOnce();
+            if (i >= warmupRuns && !isCancelled) {
+                results.add(r);
+            }
+        }
+        return results;
+    }
+
+    private Run runOnce() throws FileNotFoundException {
+        String signal = signalSource == null ? "-" : signalSource.getSignalLevel();
+        final ThroughputRecorder recorder = new ThroughputRecorder();
+        ResumableDownload d = new ResumableDownload(url, path, new ResumableDownload.Callback() {
+            @Override
+            public boolean isOnline() {
+                return true;
+            }
+
+            @Override
+            public void onProgress(int count, long downloaded, long length) {
+                recorder.onBytes(count);
+            }
+
+            @Override
+            public void onStateChanged(ResumableDownload.State state) {
+            }
+        });
+        d.setKeepAlive(isKeepAlive);
+        d.discard(); // every run starts from the first byte
+        download = d;
+        if (isCancelled) {
+            d.cancel();
+        }
+
+        long start = System.nanoTime();
+        recorder.start();
+        ResumableDownload.State state = d.run();
+        long durationMs = (System.nanoTime() - start) / 1000000;
+        d.discard();
+
+        return new Run(recorder.getTotalBytes(), durationMs, recorder.getTtfbMs(), signal,
+                       state == ResumableDownload.State.COMPLETED);
+    }
+
+    /**
+     * Returns "completed&failed" run numbers
+     */
+    public static String countSummary(List<Run> results) {
+        int completed = completed(results).size();
+        return completed + "&" + (results.size() - completed);
+    }
+
+    /**
+     * Returns "min&median&p90&max" of the throughput in KB/s of the
+     * completed runs
+     */
+    public static String throughputSummary(List<Run> results) {
+        List<Run> runs = completed(results);
+        long[] values = new long[runs.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = runs.get(i).rate / 1024;
+        }
+        return distribution(values);
+    }
+
+    /**
+     * Returns "min&median&p90&max" of the time to first byte in ms of the
+     * completed runs
+     */
+    public static String ttfbSummary(List<Run> results) {
+        List<Run> runs = completed(results);
+        long[] values = new long[runs.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = runs.get(i).ttfbMs;
+        }
+        return distribution(values);
+    }
+
+    /**
+     * Returns the signal level of every run, e.g. "-61&-63&-60"
+     */
+    public static String signalSummary(List<Run> results) {
+        StringBuilder sb = new StringBuilder();
+        for (Run r: results) {
+            if (sb.length() > 0) {
+                sb.append("&");
+            }
+            sb.append(r.signal);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns one line per run: "run bytes duration_ms ttfb_ms KB/s signal"
+     */
+    public static String toTable(List<Run> results) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("run bytes duration_ms ttfb_ms KB/s signal");
+        for (int i = 0; i < results.size(); i++) {
+            Run r = results.get(i);
+            sb.append("\n" + (i + 1) + " " + r.bytes + " " + r.durationMs + " " + r.ttfbMs
+                    + " " + r.rate / 1024 + " " + r.signal + (r.isCompleted ? "" : " incomplete"));
+        }
+        return sb.toString();
+    }
+
+    /* a failed run has a partial rate over retries and maybe no ttfb (-1) */
+    private static List<Run> completed(List<Run> results) {
+        List<Run> runs = new ArrayList<Run>();
+        for (Run r: results) {
+            if (r.isCompleted) {
+                runs.add(r);
+            }
+        }
+        return runs;
+    }
+
+    /* nearest-rank percentiles */
+    private static String distribution(long[] values) {
+        if (values.length == 0) {
+            return "0&0&0&0";
+        }
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[0] + "&" + percentile(sorted, 50) + "&" + percentile(sorted, 90)
+                + "&" + sorted[sorted.length - 1];
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
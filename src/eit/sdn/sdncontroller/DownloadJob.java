@@ -0,0 +1,258 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.io.FileNotFoundException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+/**
+ * One download of a DownloadJobQueue: its url, destination and priority,
+ * and the progress and statistics of the transfer.
+ *
+ * Jobs with a higher priority are started first, jobs of the same priority
+ * in the order they were enqueued.
+ *
+ */
+public class DownloadJob implements Runnable, Comparable<DownloadJob> {
+
+    public enum Status { QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED }
+
+    private static final AtomicLong nextSeq = new AtomicLong();
+
+    private final int id;
+    private final String url;
+    private final String path;
+    private final int priority;
+    private final long seq = nextSeq.getAndIncrement();
+    private Context context;
+    private Listener listener;
+    private IntegrityDigest integrity;
+
+    private volatile Status status = Status.QUEUED;
+    private volatile ResumableDownload download = null;
+    private volatile boolean isCancelled = false;
+    private volatile long downloaded = 0;
+    private volatile long length = -1;
+    private final ThroughputRecorder recorder = new ThroughputRecorder();
+    private final long queuedTime = SystemClock.elapsedRealtime();
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+
+    private MetricsRegistry.Counter bytesDownloaded = MetricsRegistry.getInstance().counter("download.bytes");
+
+    /**
+     * progress callback, called from the downloading thread
+     */
+    public interface Listener {
+        /** called when the percentage changed */
+        void onProgress(DownloadJob job);
+
+        /** called once the job is completed, failed or cancelled */
+        void onFinished(DownloadJob job);
+    }
+
+    DownloadJob(int id, String url, String path, int priority, IntegrityDigest integrity,
+                Context c, Listener listener) {
+        this.id = id;
+        this.url = url;
+        this.path = path;
+        this.priority = priority;
+        this.integrity = integrity;
+        this.context = c;
+        this.listener = listener;
+    }
+
+    @Override
+    public int compareTo(DownloadJob other) {
+        if (priority != other.priority) {
+            return priority > other.priority ? -1 : 1;
+        }
+        return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+    }
+
+    @Override
+    public void run() {
+        if (isCancelled) {
+            finish(Status.CANCELLED);
+            return;
+        }
+
+        status = Status.RUNNING;
+        startTime = SystemClock.elapsedRealtime();
+        NetworkStateTracker tracker = NetworkStateTracker.getInstance(context);
+        NetworkStateTracker.State network = tracker.getState();
+        recorder.start();
+        download = new ResumableDownload(url, path, new ResumableDownload.Callback() {
+            private int lastProgress = -1;
+
+            @Override
+            public boolean isOnline() {
+                return SDNCommonUtil.isOnline(context);
+            }
+
+            @Override
+            public void onProgress(int count, long downloadedBytes, long lengthBytes) {
+                bytesDownloaded.add(count);
+                recorder.onBytes(count);
+                downloaded = downloadedBytes;
+                length = lengthBytes;
+                int progress = getProgress();
+                if (progress != lastProgress && listener != null) {
+                    lastProgress = progress;
+                    listener.onProgress(DownloadJob.this);
+                }
+            }
+
+            @Override
+            public void onStateChanged(ResumableDownload.State state) {
+            }
+        });
+        download.setIntegrity(integrity);
+        if (isCancelled) {
+            download.cancel();
+        }
+
+        ResumableDownload.State state;
+        tracker.transferStarted();
+        try {
+            state = download.run();
+        } catch (FileNotFoundException e) {
+            state = ResumableDownload.State.FAILED;
+        } finally {
+            tracker.transferFinished();
+        }
+
+        if (state == ResumableDownload.State.COMPLETED) {
+            tracker.observeThroughput(network, recorder.getAverageRate(), recorder.getDurationMs(), 1);
+            finish(Status.COMPLETED);
+        } else if (state == ResumableDownload.State.CANCELLED) {
+            download.discard();
+            finish(Status.CANCELLED);
+        } else if (integrity != null && integrity.getResult().equals("mismatch")) {
+            download.discard();
+            finish(Status.FAILED);
+        } else {
+            finish(Status.FAILED);
+        }
+    }
+
+    /**
+     * stop the job, a queued job is not started anymore
+     */
+    void cancel() {
+        isCancelled = true;
+        ResumableDownload d = download;
+        if (d != null) {
+            d.cancel();
+        }
+    }
+
+    private void finish(Status s) {
+        endTime = SystemClock.elapsedRealtime();
+        status = s;
+        if (listener != null) {
+            listener.onFinished(this);
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isFinished() {
+        return status != Status.QUEUED && status != Status.RUNNING;
+    }
+
+    public long getDownloaded() {
+        return downloaded;
+    }
+
+    /** Returns the total length, -1 if not known yet */
+    public long getLength() {
+        return length;
+    }
+
+    /** Returns 0 ~ 100, or -1 if the length is unknown */
+    public int getProgress() {
+        long l = length;
+        return l > 0 ? (int)(downloaded * 100 / l) : -1;
+    }
+
+    /** Returns the time spent in the queue in ms */
+    public long getQueueDelayMs() {
+        long start = startTime;
+        return (start == 0 ? SystemClock.elapsedRealtime() : start) - queuedTime;
+    }
+
+    /** Returns the running time in ms */
+    public long getDurationMs() {
+        long start = startTime;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endTime;
+        return (end == 0 ? SystemClock.elapsedRealtime() : end) - start;
+    }
+
+    public int getReconnects() {
+        ResumableDownload d = download;
+        return d == null ? 0 : d.getReconnects();
+    }
+
+    /** Returns the digest of the job, null if it has none */
+    public IntegrityDigest getIntegrity() {
+        return integrity;
+    }
+
+    public ThroughputRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Returns the job statistics used in replies:
+     * id&status&priority&downloaded&length&queue_ms&duration_ms&ttfb_ms&avg_Bps&reconnects&digest
+     *
+     * digest is the IntegrityDigest result, or "-" without a digest
+     */
+    public String toSummary() {
+        return id + "&" + status.name().toLowerCase() + "&" + priority
+                + "&" + downloaded + "&" + length
+                + "&" + getQueueDelayMs() + "&" + getDurationMs()
+                + "&" + recorder.getTtfbMs() + "&" + recorder.getAverageRate()
+                + "&" + getReconnects()
+                + "&" + (integrity == null ? "-" : integrity.getResult());
+    }
+}
@@ -0,0 +1,199 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.os.Environment;
+import android.util.Log;
+
+/**
+ * Process-wide queue of download jobs, so several flows with their own
+ * urls, destinations and priorities can run at the same time, e.g. for
+ * creating load during offload tests.
+ *
+ * Up to getConcurrency() jobs run at once on a shared executor, waiting
+ * jobs are started by priority. Finished jobs are kept for their
+ * statistics until MAX_FINISHED_JOBS newer ones have finished.
+ *
+ */
+public class DownloadJobQueue {
+
+    private static DownloadJobQueue instance = null;
+
+    private Context context;
+    private ThreadPoolExecutor executor;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final Map<Integer, DownloadJob> jobs = new LinkedHashMap<Integer, DownloadJob>();
+
+    // defaults
+    private String LOG_TAG = SDNCommonUtil.LOG_TAG;
+    public static final int DEFAULT_CONCURRENCY = 2;
+    public static final int MAX_CONCURRENCY = 8;
+    private int MAX_FINISHED_JOBS = 32;
+
+    private DownloadJobQueue(Context c) {
+        context = c.getApplicationContext();
+        executor = new ThreadPoolExecutor(DEFAULT_CONCURRENCY, DEFAULT_CONCURRENCY,
+                30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNum = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "DownloadJob-" + threadNum.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized DownloadJobQueue getInstance(Context c) {
+        if (instance == null) {
+            instance = new DownloadJobQueue(c);
+        }
+        return instance;
+    }
+
+    /**
+     * add a download job
+     *
+     * @param url file to be downloaded
+     * @param path destination, a checkpoint of the same url is resumed;
+     *        if null, sdn-job-<id>.tmp in the public download directory
+     * @param priority higher values are started first
+     * @param listener progress callback, can be null
+     * @return the queued job
+     */
+    public DownloadJob enqueue(String url, String path, int priority, DownloadJob.Listener listener) {
+        return enqueue(url, path, priority, null, listener);
+    }
+
+    /**
+     * add a download job which is checked by a digest
+     *
+     * @param url file to be downloaded
+     * @param path destination, null for the default one
+     * @param priority higher values are started first
+     * @param integrity digest computed while downloading, can be null
+     * @param listener progress callback, can be null
+     * @return the queued job
+     */
+    public DownloadJob enqueue(String url, String path, int priority, IntegrityDigest integrity,
+                               DownloadJob.Listener listener) {
+        int id = nextId.getAndIncrement();
+        if (path == null) {
+            path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
+                    .getAbsolutePath() + "/sdn-job-" + id + ".tmp";
+        }
+        DownloadJob job = new DownloadJob(id, url, path, priority, integrity, context, listener);
+        synchronized (jobs) {
+            jobs.put(job.getId(), job);
+            removeOldJobs();
+        }
+        Log.i(LOG_TAG, "download job " + job.getId() + " queued with priority " + priority + ": " + url);
+        executor.execute(job); // execute() keeps the job comparable in the queue
+        return job;
+    }
+
+    /**
+     * cancel a queued or running job
+     *
+     * @return false if there is no such job or it is already finished
+     */
+    public boolean cancel(int id) {
+        DownloadJob job = getJob(id);
+        if (job == null || job.isFinished()) {
+            return false;
+        }
+        job.cancel();
+        if (executor.remove(job)) {
+            job.run(); // not started yet, only marks it cancelled
+        }
+        return true;
+    }
+
+    public DownloadJob getJob(int id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /** Returns all known jobs in the order they were enqueued */
+    public List<DownloadJob> getJobs() {
+        synchronized (jobs) {
+            return new ArrayList<DownloadJob>(jobs.values());
+        }
+    }
+
+    /**
+     * change the number of jobs running at the same time, running jobs
+     * are not interrupted
+     *
+     * @param n limited to 1 ~ MAX_CONCURRENCY
+     * @return the value used
+     */
+    public synchronized int setConcurrency(int n) {
+        n = Math.max(1, Math.min(MAX_CONCURRENCY, n));
+        // the maximum must never be below the core size
+        if (n > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(n);
+            executor.setCorePoolSize(n);
+        } else {
+            executor.setCorePoolSize(n);
+            executor.setMaximumPoolSize(n);
+        }
+        Log.i(LOG_TAG, "download job concurrency set to " + n);
+        return n;
+    }
+
+    public int getConcurrency() {
+        return executor.getCorePoolSize();
+    }
+
+    /** Returns the number of jobs waiting to be started */
+    public int getQueuedNum() {
+        return executor.getQueue().size();
+    }
+
+    /* drop the oldest finished jobs, must hold the jobs lock */
+    private void removeOldJobs() {
+        int finished = 0;
+        for (DownloadJob job: jobs.values()) {
+            if (job.isFinished()) {
+                finished++;
+            }
+        }
+
+        Iterator<DownloadJob> it = jobs.values().iterator();
+        while (finished > MAX_FINISHED_JOBS && it.hasNext()) {
+            if (it.next().isFinished()) {
+                it.remove();
+                finished--;
+            }
+        }
+    }
+}
@@ -17,26 +17,18 @@
 
 package eit.sdn.sdncontroller;
 
-import java.io.BufferedInputStream;
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.util.Date;
 
 import android.annotation.SuppressLint;
 import android.app.IntentService;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
-import android.net.wifi.WifiManager;
+import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.ResultReceiver;
@@ -46,9 +38,10 @@ import android.telephony.CellInfo;
 import android.telephony.CellInfoLte;
 import android.telephony.CellSignalStrengthLte;
 import android.telephony.TelephonyManager;
-import android.text.format.DateFormat;
 import android.util.Log;
 
+import eit.sdn.sdncontroller.core.LogRecordEncoder;
+
 /**
  * @author yanhe.liu@cs.helsinki.fi
  *
@@ -57,30 +50,64 @@ import android.util.Log;
  */
 public class DownloadService extends IntentService {
     
-    private boolean isCancelled = false;
-    private boolean isFinished = false;
+    private volatile boolean isCancelled = false;
+    private volatile ResumableDownload download = null;
     private long startTime; // used for calculating download time 
-    private long fileLength;
-    private boolean isFirstConnection = true;
+    private ThroughputRecorder recorder = null;
+    private NetworkStateTracker.State networkAtStart = null; // for ThroughputModel
+    private int lastProgress = -1;
+    private long lastProgressTime = 0;
+
+    // network migration, see NetworkChangeReceiver
+    private NetworkChangeReceiver networkChangeReceiver = null;
+    private String currentNetwork = null;
+    private String migrationFrom = null;
+    private long migrationStartTime = 0; // 0 when no migration is going on
+    private int migrations = 0;
+    private MetricsRegistry.Counter migrationCount = MetricsRegistry.getInstance().counter("download.migrations");
+    private LatencyHistogram migrationStall = MetricsRegistry.getInstance().histogram("download.migration.stall.ms");
+    private MetricsRegistry.Counter bytesDownloaded = MetricsRegistry.getInstance().counter("download.bytes");
+    private MetricsRegistry.Counter downloadsStarted = MetricsRegistry.getInstance().counter("download.started");
+    private MetricsRegistry.Counter downloadsCompleted = MetricsRegistry.getInstance().counter("download.completed");
     
     // default
     private String PREF_DOWNLOADING_URL_KEY = "pref_downloading_url";
     private String DOWNLOADING_URL = "http://www.cs.helsinki.fi/group/eit-sdn/testing/tiny.tmp";
+    private String PREF_DOWNLOAD_CONNECTIONS_KEY = "pref_download_connections";
+    private String DEFAULT_DOWNLOAD_CONNECTIONS = "1";
+    private String PREF_DOWNLOAD_MIGRATION_KEY = "pref_download_migration";
+    private String PREF_DOWNLOAD_DIGEST_KEY = "pref_download_digest";
     
     private String LOG_TAG = SDNCommonUtil.LOG_TAG;
-    private int MAX_BUFF = 10240;
     public static final int PROGRESS_CODE = 8344;
-    private long DELAY_TIME_MS = 2000;
-    private int DELAY_TIMES = 50;
     private String LOG_FILE = "download-log.txt";
+    private String TIMELINE_FILE = "download-timeline.txt";
+    private String MIGRATION_LOG_FILE = "download-migrations.txt";
+    private long PROGRESS_TICK_MS = 1000;
     
 
+    /**
+     * Drop the download connection as soon as the default network changes,
+     * instead of waiting for the old socket to time out
+     */
+    private class NetworkChangeReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            // the tracker may not have seen this broadcast yet
+            NetworkStateTracker.getInstance(c).refresh();
+            onNetworkChanged(getNetworkName());
+        }
+    }
+
+
     /**
      * A required constructor for this service
      *
      */
     public DownloadService() {
         super("DownloadService");
+        // restart an interrupted download after the process was killed
+        setIntentRedelivery(true);
     }
     
     /**
@@ -95,167 +122,379 @@ public class DownloadService extends IntentService {
         String urlToDownload = prefs.getString(PREF_DOWNLOADING_URL_KEY, DOWNLOADING_URL);
         Log.d(LOG_TAG, "download file url: " + urlToDownload);
         
-        // download existing file with the same name
-        // remove the old one every time when this service starts
+        // an existing file is only kept if it has a checkpoint of the same url,
+        // so a download interrupted by a service restart is resumed
         String path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
                         .getAbsolutePath() + "/sdn-download.tmp";
-        SDNCommonUtil.removeExternalFile(path, LOG_TAG);
         
         // used to transmit download progress percentage back to main activiy
         ResultReceiver receiver = (ResultReceiver) intent.getParcelableExtra("receiver");
         
         // start download 
         startTime = System.currentTimeMillis();
-        fileDownload(urlToDownload, path, receiver);
+        recorder = new ThroughputRecorder();
+        recorder.start();
+        NetworkStateTracker tracker = NetworkStateTracker.getInstance(this);
+        networkAtStart = tracker.getState();
+        lastProgress = -1;
+        downloadsStarted.inc();
+        int connections = Integer.parseInt(prefs.getString(PREF_DOWNLOAD_CONNECTIONS_KEY,
+                                                           DEFAULT_DOWNLOAD_CONNECTIONS));
+        tracker.transferStarted();
+        try {
+            if (connections > 1) {
+                SDNCommonUtil.removeExternalFile(path, LOG_TAG);
+                segmentedDownload(urlToDownload, path, receiver, connections);
+            } else {
+                fileDownload(urlToDownload, path, receiver,
+                             prefs.getBoolean(PREF_DOWNLOAD_MIGRATION_KEY, false),
+                             prefs.getString(PREF_DOWNLOAD_DIGEST_KEY, ""));
+            }
+        } finally {
+            tracker.transferFinished();
+        }
     }
     
 
     @Override
     public void onDestroy() {
         isCancelled = true;
+        ResumableDownload d = download;
+        if (d != null) {
+            d.cancel();
+        }
         Log.d(LOG_TAG, "DownlaodingService stopped.");
         super.onDestroy();
     }
     
     
-    // Here I use a try/catch recursion
-    @SuppressLint("NewApi")
-    private void fileDownload(String urlToDownload, String path, ResultReceiver receiver) {
-        
-        long total = 0;
-        InputStream input = null;
-        OutputStream output = null;
-        
-        try {
-            URL url = new URL(urlToDownload);
-            HttpURLConnection connection = (HttpURLConnection)url.openConnection();
-            
-            File file = new File(path);
-            if (file.exists()) { // resume downloading
-                 total = file.length();
-                 connection.setRequestProperty("Range", "bytes=" + total + "-");
-                 Log.i(LOG_TAG, "resume downloading from bytes " + total);
+    /**
+     * download the file over several parallel range connections
+     *
+     * @param urlToDownload
+     * @param path local file
+     * @param receiver progress receiver of main activity
+     * @param connections number of parallel connections
+     */
+    private void segmentedDownload(String urlToDownload, String path,
+                                   final ResultReceiver receiver, int connections) {
+        final SegmentedDownloader downloader = new SegmentedDownloader(urlToDownload, path, connections);
+        downloader.setListener(new SegmentedDownloader.Listener() {
+            private long lastDownloaded = 0;
+
+            // called by all download threads
+            @Override
+            public synchronized void onProgress(long downloaded, long total) {
+                if (downloaded > lastDownloaded) {
+                    bytesDownloaded.add(downloaded - lastDownloaded);
+                    recorder.onBytes(downloaded - lastDownloaded);
+                    lastDownloaded = downloaded;
+                }
+                publishProgress(receiver, downloaded, total);
+                if (isCancelled) {
+                    downloader.cancel();
+                }
             }
-            
-            connection.connect();
-            // this will be to show a 0-100% progress bar
-            if (isFirstConnection) {
-                fileLength = connection.getContentLength();
+        });
+
+        try {
+            long total = downloader.download();
+            if (!isCancelled) {
+                downloadsCompleted.inc();
+                Log.d(LOG_TAG, "finish segmented downloading with size " + total);
+                writeDownloadLog(" -- segmented " + connections);
+                observeThroughput();
+                writeTimeline(urlToDownload, "completed");
             }
-            
-            // download the file
-            input = new BufferedInputStream(connection.getInputStream());
-            output = new FileOutputStream(file, true);
-            
-            byte data[] = new byte[MAX_BUFF];
-            int count;
-            while (!isCancelled && (count = input.read(data)) != -1) {
-                output.write(data, 0, count);
-                total += count;
-                // publishing the progress....
-                Bundle resultData = new Bundle();
-                resultData.putInt("progress", (int)(total * 100 / fileLength));
-                receiver.send(PROGRESS_CODE, resultData);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "segmented download failed: " + e.getMessage());
+            writeTimeline(urlToDownload, "failed");
+            Bundle resultData = new Bundle();
+            resultData.putInt("progress", -1);
+            receiver.send(PROGRESS_CODE, resultData);
+            return;
+        } finally {
+            SDNCommonUtil.removeExternalFile(path, LOG_TAG);
+        }
+
+        // publish final signal to main activity
+        Bundle resultData = new Bundle();
+        resultData.putInt("progress", 100);
+        receiver.send(PROGRESS_CODE, resultData);
+    }
+
+
+    /**
+     * download the file over one connection, reconnecting with backoff
+     * when the connection is lost
+     *
+     * @param urlToDownload
+     * @param path local file, resumed if a checkpoint of the same url exists
+     * @param receiver progress receiver of main activity
+     * @param isMigrating move to a new default network as soon as it appears
+     * @param digestSpec e.g. "sha-256" or "sha-256:expected_hex", empty for none
+     */
+    private void fileDownload(String urlToDownload, String path, final ResultReceiver receiver,
+                              boolean isMigrating, String digestSpec) {
+        final Context context = this;
+        download = new ResumableDownload(urlToDownload, path, new ResumableDownload.Callback() {
+            private long lastDownloaded = 0;
+
+            @Override
+            public boolean isOnline() {
+                return SDNCommonUtil.isOnline(context);
             }
-    
-            output.flush();
-            output.close();
-            input.close();
-            isFinished = true;
-            
-            // write to download statistics
-            Log.d(LOG_TAG, "finish file downloading with size " + total);
-            if (!isCancelled) {
-                // date and time
-                Date d = new Date();
-                CharSequence s  = DateFormat.format("hh:mm:ss, MMMM d, yyyy", d.getTime());
-                String timestamp = "[" + s.toString() + "] ";
-                
-                // download duration
-                long endTime = System.currentTimeMillis();
-                double interval = (endTime - startTime) / 1000.0;
-                String text = timestamp + total + " bytes -- " + interval + "s";
-                
-                // get signal level
-                ConnectivityManager cManager = (ConnectivityManager)this.getSystemService(Context.CONNECTIVITY_SERVICE);
-                int type = cManager.getActiveNetworkInfo().getType();
-                if (type == ConnectivityManager.TYPE_MOBILE) { // cellular
-                    // FIXME this part is not working right now
-                    // get lte signal level
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
-                        // current only for 4.2 and newer versions
-                        TelephonyManager tManager = (TelephonyManager)this.getSystemService(Context.TELEPHONY_SERVICE);
-                        try {
-                            for (CellInfo info: tManager.getAllCellInfo()) {
-                                if (info instanceof CellInfoLte) {
-                                    CellSignalStrengthLte lte = ((CellInfoLte) info).getCellSignalStrength();
-                                    int level = lte.getDbm();
-                                    text += " -- " + level;
-                                }
-                            }
-                        } catch (Exception e) {
-                            Log.e(LOG_TAG, "Unable to obtain cell signal information");
-                        }
-                   }
-                } else if (type == ConnectivityManager.TYPE_WIFI) { // wifi
-                    // wifi signal level
-                    WifiManager wifiManager = (WifiManager)this.getSystemService(Context.WIFI_SERVICE);
-                    int level = wifiManager.getConnectionInfo().getRssi();
-                    text += " -- " + level;
+
+            @Override
+            public void onProgress(int count, long downloaded, long length) {
+                bytesDownloaded.add(count);
+                recorder.onBytes(count);
+                lastDownloaded = downloaded;
+                if (migrationStartTime != 0) {
+                    finishMigration(downloaded);
                 }
-                
-                SDNCommonUtil.writeToExternalFile(text, LOG_TAG, LOG_FILE);
-                SDNCommonUtil.removeExternalFile(path, LOG_TAG);
+                publishProgress(receiver, downloaded, length);
             }
 
-        } catch (SocketException e) { // lost connection
-            Log.e(LOG_TAG, "socket error, try to resume downloading");
-            isFirstConnection = false;
-            if (output != null) { // force OS to flush cached bytes to file
-                try {
-                    output.close();
-                } catch (IOException ex) {
-                    Log.e(LOG_TAG, "fail to write file");
-                    isFinished = true; // skip downloading in this case
+            @Override
+            public void onStateChanged(ResumableDownload.State state) {
+                Log.d(LOG_TAG, "download state: " + state);
+                if (state == ResumableDownload.State.CONNECTING && lastDownloaded > 0) {
+                    Log.i(LOG_TAG, "resume downloading from bytes " + lastDownloaded);
                 }
             }
-            
-            int i = 0;
-            while (i < DELAY_TIMES && !isFinished) {
-                i++;
-                SystemClock.sleep(DELAY_TIME_MS);
-                if (SDNCommonUtil.isOnline(this)) { // recursion
-                    fileDownload(urlToDownload, path, receiver);
-                }
+        });
+        if (isCancelled) {
+            download.cancel();
+        }
+        try {
+            download.setIntegrity(IntegrityDigest.fromSpec(digestSpec));
+        } catch (IllegalArgumentException e) {
+            Log.w(LOG_TAG, e.getMessage() + ", download without integrity check");
+        }
+
+        if (isMigrating) {
+            migrations = 0;
+            migrationStartTime = 0;
+            currentNetwork = getNetworkName();
+            networkChangeReceiver = new NetworkChangeReceiver();
+            registerReceiver(networkChangeReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+
+        ResumableDownload.State state;
+        try {
+            state = download.run();
+        } catch (FileNotFoundException e) {
+            Bundle resultData = new Bundle();
+            resultData.putInt("progress", (int)-1);
+            receiver.send(PROGRESS_CODE, resultData);
+            Log.e(LOG_TAG, "download file is not found!");
+            download.discard();
+            return;
+        } finally {
+            if (networkChangeReceiver != null) {
+                unregisterReceiver(networkChangeReceiver);
+                networkChangeReceiver = null;
             }
-        } catch (FileNotFoundException e) {    
-            // publishing the progress....
-            if (isFirstConnection) {
-                Bundle resultData = new Bundle();
-                resultData.putInt("progress", (int)-1);
-                receiver.send(PROGRESS_CODE, resultData);
-                Log.e(LOG_TAG, "download file is not found!");
-                e.printStackTrace();
+        }
+
+        long total = download.getDownloaded();
+        if (state == ResumableDownload.State.COMPLETED) {
+            Log.d(LOG_TAG, "finish file downloading with size " + total);
+            downloadsCompleted.inc();
+            String suffix = "";
+            if (download.getRestored() > 0) {
+                suffix += " -- resumed from " + download.getRestored();
             }
-        } catch (SocketTimeoutException e) {
-            Log.e(LOG_TAG, "download connection timeout");
-            e.printStackTrace();
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "fail to read/write file");
-            e.printStackTrace();
-        } finally {
-            try {
-                if (output != null)
-                    output.close();
-                if (input != null)
-                    input.close();
-            } catch (IOException ignored) {}
+            if (download.getReconnects() > 0) {
+                suffix += " -- reconnects " + download.getReconnects();
+            }
+            if (migrations > 0) {
+                suffix += " -- migrations " + migrations;
+            }
+            if (download.getIntegrity() != null) {
+                suffix += " -- " + download.getIntegrity().toSummary();
+            }
+            writeDownloadLog(suffix);
+            writeTimeline(urlToDownload, "completed");
+            observeThroughput();
+            download.discard();
+        } else if (state == ResumableDownload.State.CANCELLED) {
+            Log.d(LOG_TAG, "download cancelled at " + total + " bytes");
+            download.discard();
+        } else if (download.getIntegrity() != null && download.getIntegrity().getResult().equals("mismatch")) {
+            Log.e(LOG_TAG, "downloaded file is corrupted: " + download.getIntegrity().toSummary());
+            writeDownloadLog(" -- " + download.getIntegrity().toSummary());
+            writeTimeline(urlToDownload, "corrupted");
+            download.discard();
+        } else {
+            // keep the checkpoint, a later start continues from it
+            Log.e(LOG_TAG, "download failed at " + total + " bytes after "
+                            + download.getReconnects() + " reconnects");
+            writeTimeline(urlToDownload, "failed");
         }
-        
+
         // publish final signal to main activity
         Bundle resultData = new Bundle();
         resultData.putInt("downloadProgress" ,100);
         receiver.send(PROGRESS_CODE, resultData);
     }
 
+
+    /* Returns e.g. "WIFI/bssid" or "MOBILE", null if not connected */
+    private String getNetworkName() {
+        NetworkStateTracker.State network = NetworkStateTracker.getInstance(this).getState();
+        if (!network.isConnected) {
+            return null;
+        }
+        if (network.isWifiConnected()) {
+            return network.type.toUpperCase() + "/" + network.bssid;
+        }
+        return network.type.toUpperCase();
+    }
+
+
+    /**
+     * called on the main thread when the connectivity changed, a migration
+     * starts with the first change and lasts until data arrives again
+     *
+     * @param network new network, null if none is connected
+     */
+    private synchronized void onNetworkChanged(String network) {
+        if (network != null && network.equals(currentNetwork)) {
+            return;
+        }
+
+        Log.i(LOG_TAG, "network changed from " + currentNetwork + " to " + network);
+        String previous = currentNetwork;
+        currentNetwork = network;
+        if (migrationStartTime == 0) {
+            migrationStartTime = SystemClock.elapsedRealtime();
+            migrationFrom = previous == null ? "none" : previous;
+            ResumableDownload d = download;
+            if (d != null) {
+                d.migrate();
+            }
+        }
+    }
+
+
+    /* log a finished migration when the first bytes arrive on the new network */
+    private synchronized void finishMigration(long downloaded) {
+        if (migrationStartTime == 0) {
+            return;
+        }
+
+        long stall = SystemClock.elapsedRealtime() - migrationStartTime;
+        migrationStartTime = 0;
+        migrations++;
+        migrationCount.inc();
+        migrationStall.record(stall);
+
+        String text = LogRecordEncoder.getInstance().timestamp(System.currentTimeMillis()) + migrationFrom + " -> " + currentNetwork
+                        + " -- at " + downloaded + " bytes -- stall " + stall + "ms";
+        Log.i(LOG_TAG, "download migrated: " + text);
+        SDNCommonUtil.writeToExternalFile(text, LOG_TAG, MIGRATION_LOG_FILE);
+    }
+
+
+    /**
+     * send the progress to main activity, only when the percentage changed
+     * or PROGRESS_TICK_MS passed since the last update
+     *
+     * @param receiver progress receiver of main activity
+     * @param downloaded
+     * @param length total length, progress is not sent if unknown
+     */
+    private synchronized void publishProgress(ResultReceiver receiver, long downloaded, long length) {
+        if (length <= 0) {
+            return;
+        }
+
+        int progress = (int)(downloaded * 100 / length);
+        long now = SystemClock.elapsedRealtime();
+        if (progress != lastProgress || now - lastProgressTime >= PROGRESS_TICK_MS) {
+            lastProgress = progress;
+            lastProgressTime = now;
+            Bundle resultData = new Bundle();
+            resultData.putInt("progress", progress);
+            receiver.send(PROGRESS_CODE, resultData);
+        }
+    }
+
+
+    /* add a completed download to the throughput model of its ap */
+    private void observeThroughput() {
+        boolean isUsed = NetworkStateTracker.getInstance(this).observeThroughput(networkAtStart,
+                recorder.getAverageRate(), recorder.getDurationMs(), 1);
+        if (!isUsed) {
+            Log.d(LOG_TAG, "download not used for throughput model, too short or network changed");
+        }
+    }
+
+
+    /**
+     * append the throughput timeline of the current download to
+     * SDNController/download-timeline.txt
+     *
+     * @param urlToDownload
+     * @param result e.g. completed or failed
+     */
+    private void writeTimeline(String urlToDownload, String result) {
+        String header = "[" + startTime + "] " + urlToDownload + " " + result
+                        + " " + recorder.getTotalBytes() + " bytes";
+        Log.d(LOG_TAG, "download timeline " + recorder.toSummary());
+        SDNCommonUtil.writeToExternalFile(header + "\n" + recorder.toTimeline(), LOG_TAG, TIMELINE_FILE);
+    }
+
+
+    /**
+     * append the bytes transferred since startTime, the duration and the
+     * signal level of a finished download to the download log. Bytes of a
+     * resumed checkpoint are not counted, so size / duration is the
+     * throughput of this run.
+     *
+     * @param suffix appended to the line
+     */
+    @SuppressLint("NewApi")
+    private void writeDownloadLog(String suffix) {
+        // date and time
+        String timestamp = LogRecordEncoder.getInstance().timestamp(System.currentTimeMillis());
+
+        // download duration
+        long endTime = System.currentTimeMillis();
+        double interval = (endTime - startTime) / 1000.0;
+        String text = timestamp + recorder.getTotalBytes() + " bytes -- " + interval + "s";
+
+        // get signal level
+        ConnectivityManager cManager = (ConnectivityManager)this.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = cManager.getActiveNetworkInfo();
+        int type = networkInfo == null ? -1 : networkInfo.getType();
+        if (type == ConnectivityManager.TYPE_MOBILE) { // cellular
+            // FIXME this part is not working right now
+            // get lte signal level
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                // current only for 4.2 and newer versions
+                TelephonyManager tManager = (TelephonyManager)this.getSystemService(Context.TELEPHONY_SERVICE);
+                try {
+                    for (CellInfo info: tManager.getAllCellInfo()) {
+                        if (info instanceof CellInfoLte) {
+                            CellSignalStrengthLte lte = ((CellInfoLte) info).getCellSignalStrength();
+                            int level = lte.getDbm();
+                            text += " -- " + level;
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "Unable to obtain cell signal information");
+                }
+           }
+        } else if (type == ConnectivityManager.TYPE_WIFI) { // wifi
+            // wifi signal level
+            int level = NetworkStateTracker.getInstance(this).getState().rssi;
+            text += " -- " + level;
+        }
+
+        SDNCommonUtil.writeToExternalFile(text + suffix, LOG_TAG, LOG_FILE);
+    }
+
 }
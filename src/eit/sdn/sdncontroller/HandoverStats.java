@@ -0,0 +1,128 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-memory latency statistics of scanning and handovers (all in ms).
+ *
+ * Statistics are collected in a measurement window. reset() closes the
+ * current window and opens a new one, recorders always write into the
+ * window which is current at the time, without any locking.
+ *
+ */
+public class HandoverStats {
+
+    private final AtomicReference<Window> window = new AtomicReference<Window>(new Window());
+
+    /**
+     * one measurement window
+     */
+    public static class Window {
+        public final long startTime = System.currentTimeMillis();
+        public final LatencyHistogram scanDelay = new LatencyHistogram();
+        public final LatencyHistogram appDelay = new LatencyHistogram();
+        public final LatencyHistogram connectDelay = new LatencyHistogram();
+        public final LatencyHistogram handoverDelay = new LatencyHistogram();
+        public final AtomicLong failures = new AtomicLong();
+        // end-to-end handover delay of each target ap
+        public final ConcurrentMap<String, LatencyHistogram> apHandoverDelay =
+                new ConcurrentHashMap<String, LatencyHistogram>();
+
+        private LatencyHistogram getApHistogram(String bssid) {
+            LatencyHistogram h = apHandoverDelay.get(bssid);
+            if (h == null) {
+                LatencyHistogram newHistogram = new LatencyHistogram();
+                h = apHandoverDelay.putIfAbsent(bssid, newHistogram);
+                if (h == null) {
+                    h = newHistogram;
+                }
+            }
+            return h;
+        }
+    }
+
+    public void recordScan(long delayMs) {
+        window.get().scanDelay.record(delayMs);
+    }
+
+    public void recordApp(long delayMs) {
+        window.get().appDelay.record(delayMs);
+    }
+
+    /**
+     * record a successful handover
+     *
+     * @param bssid target ap, can be null if unknown
+     * @param connectMs delay from the switch order to the new connection
+     * @param handoverMs end-to-end delay including app detection and scanning
+     */
+    public void recordHandover(String bssid, long connectMs, long handoverMs) {
+        Window w = window.get();
+        w.connectDelay.record(connectMs);
+        w.handoverDelay.record(handoverMs);
+        if (bssid != null) {
+            w.getApHistogram(bssid.toLowerCase()).record(handoverMs);
+        }
+    }
+
+    public void recordFailure() {
+        window.get().failures.incrementAndGet();
+    }
+
+    /**
+     * Returns the current window
+     */
+    public Window getWindow() {
+        return window.get();
+    }
+
+    /**
+     * close the current measurement window and open a new one
+     *
+     * @return the closed window
+     */
+    public Window reset() {
+        return window.getAndSet(new Window());
+    }
+
+    /**
+     * Returns the percentile summary of a window in the reply format:
+     * window_s|scan&...|app&...|connect&...|handover&...|fail&n|ap&bssid&...
+     * where each histogram is written as count&p50&p90&p99&max
+     *
+     * @param w window to be summarized
+     */
+    public static String toSummary(Window w) {
+        StringBuilder sb = new StringBuilder();
+        sb.append((System.currentTimeMillis() - w.startTime) / 1000);
+        sb.append("|scan&").append(w.scanDelay.toSummary());
+        sb.append("|app&").append(w.appDelay.toSummary());
+        sb.append("|connect&").append(w.connectDelay.toSummary());
+        sb.append("|handover&").append(w.handoverDelay.toSummary());
+        sb.append("|fail&").append(w.failures.get());
+        for (Map.Entry<String, LatencyHistogram> e: w.apHandoverDelay.entrySet()) {
+            sb.append("|ap&").append(e.getKey()).append("&").append(e.getValue().toSummary());
+        }
+        return sb.toString();
+    }
+}
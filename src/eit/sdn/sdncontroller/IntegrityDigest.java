@@ -0,0 +1,305 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Digest of a download computed while the data streams in, so the file
+ * never has to be read a second time.
+ *
+ * Besides the digest of the whole file, every chunk of CHUNK_BYTES gets its
+ * own hash. Only the chunk hashes go into the download checkpoint, since
+ * the state of a MessageDigest can not be saved: after a service restart
+ * the download continues from the last complete chunk, and the whole-file
+ * digest is not known anymore. Reconnects within the same process keep
+ * the whole-file digest.
+ *
+ * Expected values can be given as the hash of the whole file and/or as a
+ * manifest of chunk hashes. A chunk which does not match the manifest is
+ * detected right after it is received, so it can be fetched again.
+ *
+ */
+public class IntegrityDigest {
+
+    public static final int DEFAULT_CHUNK_BYTES = 1024 * 1024;
+
+    private final String algorithm;
+    private final int chunkSize;
+    private MessageDigest whole;          // null if lost by a restore
+    private MessageDigest wholeAtChunk;   // whole digest at the last chunk boundary
+    private MessageDigest chunk;
+    private long position = 0;            // bytes hashed
+    private final List<String> chunkHashes = new ArrayList<String>();
+
+    private String expected = null;       // hex digest of the whole file
+    private List<String> manifest = null; // expected chunk hashes
+    private String result = "pending";
+    private String hash = null;
+
+    /**
+     * @param algorithm e.g. SHA-256 or MD5
+     * @param chunkSize bytes per chunk hash
+     * @throws NoSuchAlgorithmException
+     */
+    public IntegrityDigest(String algorithm, int chunkSize) throws NoSuchAlgorithmException {
+        this.algorithm = algorithm.toUpperCase();
+        this.chunkSize = chunkSize;
+        whole = MessageDigest.getInstance(this.algorithm);
+        chunk = MessageDigest.getInstance(this.algorithm);
+        wholeAtChunk = cloneDigest(whole);
+    }
+
+    /**
+     * create a digest from a setting like "sha-256" or "sha-256:expected_hex"
+     *
+     * @return null for an empty spec
+     * @throws IllegalArgumentException for an unknown algorithm
+     */
+    public static IntegrityDigest fromSpec(String spec) {
+        if (spec == null || spec.trim().equals("")) {
+            return null;
+        }
+
+        String[] parts = spec.trim().split(":", 2);
+        try {
+            IntegrityDigest digest = new IntegrityDigest(parts[0], DEFAULT_CHUNK_BYTES);
+            if (parts.length > 1 && !parts[1].trim().equals("")) {
+                digest.setExpected(parts[1]);
+            }
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unknown digest algorithm " + parts[0]);
+        }
+    }
+
+    /**
+     * Returns the chunk hashes of a manifest: one hex hash per line, empty
+     * lines and lines starting with # are skipped
+     */
+    public static List<String> parseManifest(String text) {
+        List<String> hashes = new ArrayList<String>();
+        for (String line: text.split("\n")) {
+            line = line.trim();
+            if (!line.equals("") && !line.startsWith("#")) {
+                hashes.add(line.toLowerCase());
+            }
+        }
+        return hashes;
+    }
+
+    public void setExpected(String hex) {
+        expected = hex.trim().toLowerCase();
+    }
+
+    public void setManifest(List<String> chunkHashes) {
+        manifest = chunkHashes;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * add downloaded data
+     *
+     * @return false if a completed chunk does not match the manifest, the
+     *         caller has to call rollback() and fetch that chunk again
+     */
+    public boolean update(byte[] data, int offset, int count) {
+        while (count > 0) {
+            int inChunk = (int)(position % chunkSize);
+            int n = Math.min(count, chunkSize - inChunk);
+            chunk.update(data, offset, n);
+            if (whole != null) {
+                // per chunk, so the copy taken at a chunk boundary has no later bytes
+                whole.update(data, offset, n);
+            }
+            position += n;
+            offset += n;
+            count -= n;
+            if (inChunk + n == chunkSize && !completeChunk()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * drop the data after the last good chunk
+     *
+     * @return the position to continue downloading from
+     */
+    public long rollback() {
+        position = (long)chunkHashes.size() * chunkSize;
+        chunk.reset();
+        whole = wholeAtChunk == null ? null : cloneDigest(wholeAtChunk);
+        return position;
+    }
+
+    /**
+     * start again from the first byte, e.g. when the file changed
+     */
+    public void reset() {
+        chunkHashes.clear();
+        position = 0;
+        chunk.reset();
+        try {
+            whole = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            whole = null; // not possible, the algorithm was found before
+        }
+        wholeAtChunk = cloneDigest(whole);
+        result = "pending";
+        hash = null;
+    }
+
+    /**
+     * complete the last chunk and compare with the expected values
+     *
+     * @return false if the data does not match
+     */
+    public boolean finish() {
+        if (position % chunkSize != 0 || position == 0) {
+            if (!completeChunk()) {
+                result = "mismatch";
+                return false;
+            }
+        }
+
+        if (manifest != null && manifest.size() != chunkHashes.size()) {
+            result = "mismatch";
+            return false;
+        }
+
+        if (whole != null) {
+            hash = toHex(whole.digest());
+        }
+        if (expected != null) {
+            if (hash == null) {
+                // the whole-file digest was lost by a service restart
+                result = manifest != null ? "ok" : "unverified";
+                return true;
+            }
+            result = hash.equals(expected) ? "ok" : "mismatch";
+            return result.equals("ok");
+        }
+        result = manifest != null ? "ok" : "computed";
+        return true;
+    }
+
+    /**
+     * Returns pending, computed (nothing to compare with), ok, mismatch,
+     * or unverified (expected whole-file digest lost by a restart)
+     */
+    public String getResult() {
+        return result;
+    }
+
+    /** Returns the hex digest of the whole file, null if not known */
+    public String getHash() {
+        return hash;
+    }
+
+    /** Returns e.g. "sha-256 ok" for the download log */
+    public String toSummary() {
+        return algorithm.toLowerCase() + " " + result + (hash != null ? " " + hash : "");
+    }
+
+    /**
+     * store the chunk hashes into a download checkpoint
+     */
+    public void save(Properties p) {
+        p.setProperty("digest.algorithm", algorithm);
+        p.setProperty("digest.chunk", Integer.toString(chunkSize));
+        StringBuilder sb = new StringBuilder();
+        for (String h: chunkHashes) {
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(h);
+        }
+        p.setProperty("digest.chunks", sb.toString());
+    }
+
+    /**
+     * restore the chunk hashes from a download checkpoint
+     *
+     * @param p checkpoint
+     * @param confirmed bytes downloaded according to the checkpoint
+     * @return the position to continue from, at most confirmed, or -1 if
+     *         the checkpoint has no matching digest state
+     */
+    public long restore(Properties p, long confirmed) {
+        if (!algorithm.equals(p.getProperty("digest.algorithm"))
+                || !Integer.toString(chunkSize).equals(p.getProperty("digest.chunk"))) {
+            return -1;
+        }
+
+        reset();
+        String chunks = p.getProperty("digest.chunks", "");
+        for (String h: chunks.split(",")) {
+            if (!h.equals("") && (long)(chunkHashes.size() + 1) * chunkSize <= confirmed) {
+                chunkHashes.add(h);
+            }
+        }
+        whole = null;
+        wholeAtChunk = null;
+        position = (long)chunkHashes.size() * chunkSize;
+        return position;
+    }
+
+    private boolean completeChunk() {
+        String h = toHex(chunk.digest());
+        int index = chunkHashes.size();
+        if (manifest != null && (index >= manifest.size() || !manifest.get(index).equals(h))) {
+            return false;
+        }
+        chunkHashes.add(h);
+        if (whole != null) {
+            wholeAtChunk = cloneDigest(whole);
+        }
+        return true;
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest)digest.clone();
+        } catch (CloneNotSupportedException e) {
+            return null; // rollback then loses the whole-file digest
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,140 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative long values (e.g. delays in ms) with a bounded
+ * relative error.
+ *
+ * Values below 32 are counted exactly. Larger values fall into log-linear
+ * buckets, 16 buckets per power of two, so a reported percentile is at most
+ * about 3% away from the real value. Recording only uses atomic operations,
+ * it can be called from any thread without locking.
+ *
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // per power of two
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;     // exact below this
+    private static final int MAX_SHIFT = 36;
+    private static final long MAX_VALUE = (1L << (MAX_SHIFT + SUB_BUCKET_BITS + 1)) - 1;
+    private static final int BUCKET_NUM = LINEAR_LIMIT + MAX_SHIFT * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_NUM);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+
+    /**
+     * record one value, negative values are ignored and too large values
+     * are clamped to the largest bucket
+     *
+     * @param value
+     */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * Returns the value at a given percentile
+     *
+     * @param percentile in range (0, 100]
+     * @return the representative value of the bucket holding that percentile,
+     *         or 0 if nothing has been recorded
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(percentile / 100.0 * n);
+        if (rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bucketMiddle(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns a compact summary "count&p50&p90&p99&max", used in the
+     * replies sent to the agent
+     */
+    public String toSummary() {
+        return count.get() + "&" + getPercentile(50) + "&" + getPercentile(90)
+                + "&" + getPercentile(99) + "&" + max.get();
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int)value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BUCKET_BITS;
+        int sub = (int)(value >> shift); // in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+    }
+
+    private static long bucketMiddle(int index) {
+        if (index < LINEAR_LIMIT) {
+            return index;
+        }
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long sub = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        long lower = sub << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Immutable snapshot of the settings used by UDPListeningService.
+ *
+ * A new snapshot is built and published as a whole whenever one of its
+ * preferences changes, so a reader never sees half of an update and the
+ * service does not need to be restarted. Components which have to act on a
+ * change, e.g. bind another port, register a Listener.
+ *
+ */
+public final class ListenerConfig {
+
+    public static final String PREF_UDP_PORT = "recv_udp_port";
+    public static final String PREF_MOTION_DETECTION = "pref_motion_detection";
+    public static final String PREF_UID_SAMPLE_PERIOD = "pref_uid_sample_period";
+    public static final String PREF_SWITCH_TIMEOUT = "pref_switch_timeout";
+
+    public static final int DEFAULT_UDP_PORT = 7755;
+    public static final long DEFAULT_UID_SAMPLE_PERIOD_MS = 1000;
+    public static final long DEFAULT_SWITCH_TIMEOUT_MS = 12000;
+
+    private static volatile ListenerConfig current = null;
+    private static final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    // SharedPreferences keeps its listeners only weakly
+    private static OnSharedPreferenceChangeListener prefListener = null;
+
+    public final int udpPort;
+    public final boolean isMotionDetection;
+    public final long uidSamplePeriodMs;
+    public final long switchTimeoutMs;
+
+    /**
+     * called on the main thread after a new snapshot is published
+     */
+    public interface Listener {
+        void onConfigChanged(ListenerConfig old, ListenerConfig config);
+    }
+
+    ListenerConfig(int udpPort, boolean isMotionDetection, long uidSamplePeriodMs, long switchTimeoutMs) {
+        this.udpPort = udpPort;
+        this.isMotionDetection = isMotionDetection;
+        this.uidSamplePeriodMs = uidSamplePeriodMs;
+        this.switchTimeoutMs = switchTimeoutMs;
+    }
+
+    /**
+     * Returns the current snapshot, read from the preferences on first use
+     */
+    public static ListenerConfig get(Context c) {
+        ListenerConfig config = current;
+        if (config == null) {
+            config = init(c);
+        }
+        return config;
+    }
+
+    public static void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public static void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /** Returns true if the preference is part of the snapshot */
+    public static boolean isLiveKey(String key) {
+        return PREF_UDP_PORT.equals(key) || PREF_MOTION_DETECTION.equals(key)
+                || PREF_UID_SAMPLE_PERIOD.equals(key) || PREF_SWITCH_TIMEOUT.equals(key);
+    }
+
+    /** Returns true if the value is a port the listener can use */
+    public static boolean isValidPort(int port) {
+        return 1024 <= port && port <= 65535;
+    }
+
+    private static synchronized ListenerConfig init(Context c) {
+        if (current == null) {
+            final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c.getApplicationContext());
+            current = fromPreferences(prefs);
+            prefListener = new OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences p, String key) {
+                    if (isLiveKey(key)) {
+                        publish(fromPreferences(p));
+                    }
+                }
+            };
+            prefs.registerOnSharedPreferenceChangeListener(prefListener);
+        }
+        return current;
+    }
+
+    private static void publish(ListenerConfig config) {
+        ListenerConfig old;
+        synchronized (ListenerConfig.class) {
+            old = current;
+            current = config;
+        }
+        Log.i(SDNCommonUtil.LOG_TAG, "listener config changed: " + config);
+        for (Listener l: listeners) {
+            l.onConfigChanged(old, config);
+        }
+    }
+
+    /**
+     * build a snapshot, invalid values are replaced by the defaults
+     */
+    static ListenerConfig fromPreferences(SharedPreferences prefs) {
+        int port = (int)parse(prefs.getString(PREF_UDP_PORT, null), DEFAULT_UDP_PORT);
+        if (!isValidPort(port)) {
+            port = DEFAULT_UDP_PORT;
+        }
+        return new ListenerConfig(port,
+                prefs.getBoolean(PREF_MOTION_DETECTION, false),
+                Math.max(100, parse(prefs.getString(PREF_UID_SAMPLE_PERIOD, null), DEFAULT_UID_SAMPLE_PERIOD_MS)),
+                Math.max(1000, parse(prefs.getString(PREF_SWITCH_TIMEOUT, null), DEFAULT_SWITCH_TIMEOUT_MS)));
+    }
+
+    private static long parse(String value, long def) {
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "port=" + udpPort + " motion=" + isMotionDetection
+                + " uid_sample_ms=" + uidSamplePeriodMs + " switch_timeout_ms=" + switchTimeoutMs;
+    }
+}
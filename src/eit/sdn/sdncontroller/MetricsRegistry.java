@@ -0,0 +1,194 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of counters, gauges and histograms shared by all
+ * services.
+ *
+ * Metrics are created on first use and live until the process dies. The
+ * returned objects should be kept in a field, updating them needs neither
+ * a map lookup nor a lock.
+ *
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+    private ScheduledFuture<?> dumping = null;
+
+    private String LOG_TAG = SDNCommonUtil.LOG_TAG;
+    private String DUMP_FILE = "metrics.txt";
+
+    /**
+     * Counter striped over several cells, so threads updating it at the same
+     * time rarely touch the same cache line
+     */
+    public static class Counter {
+        private static final int STRIPES = 8;
+        private static final int PADDING = 8; // one cell per 64 bytes
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+        public void inc() {
+            add(1);
+        }
+
+        public void add(long n) {
+            int stripe = (int)(Thread.currentThread().getId() & (STRIPES - 1));
+            cells.addAndGet(stripe * PADDING, n);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Value which can go up and down, e.g. a queue depth
+     */
+    public static class Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void set(long v) {
+            value.set(v);
+        }
+
+        public void add(long n) {
+            value.addAndGet(n);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    public static MetricsRegistry getInstance() {
+        return instance;
+    }
+
+    public Counter counter(String name) {
+        Counter c = counters.get(name);
+        if (c == null) {
+            Counter newCounter = new Counter();
+            c = counters.putIfAbsent(name, newCounter);
+            if (c == null) {
+                c = newCounter;
+            }
+        }
+        return c;
+    }
+
+    public Gauge gauge(String name) {
+        Gauge g = gauges.get(name);
+        if (g == null) {
+            Gauge newGauge = new Gauge();
+            g = gauges.putIfAbsent(name, newGauge);
+            if (g == null) {
+                g = newGauge;
+            }
+        }
+        return g;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram h = histograms.get(name);
+        if (h == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            h = histograms.putIfAbsent(name, newHistogram);
+            if (h == null) {
+                h = newHistogram;
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Returns the current value of every metric sorted by name, histograms
+     * are written as count&p50&p90&p99&max
+     */
+    public Map<String, String> snapshot() {
+        Map<String, String> values = new TreeMap<String, String>();
+        for (Map.Entry<String, Counter> e: counters.entrySet()) {
+            values.put(e.getKey(), Long.toString(e.getValue().get()));
+        }
+        for (Map.Entry<String, Gauge> e: gauges.entrySet()) {
+            values.put(e.getKey(), Long.toString(e.getValue().get()));
+        }
+        for (Map.Entry<String, LatencyHistogram> e: histograms.entrySet()) {
+            values.put(e.getKey(), e.getValue().toSummary());
+        }
+        return values;
+    }
+
+    /**
+     * Returns the snapshot as "name=value" fields joined by a separator
+     *
+     * @param separator e.g. "|" for replies or "\n" for files
+     */
+    public String export(String separator) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e: snapshot().entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(separator);
+            }
+            sb.append(e.getKey()).append("=").append(e.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * start appending snapshots to SDNController/metrics.txt periodically
+     *
+     * @param intervalMs
+     */
+    public synchronized void startDump(long intervalMs) {
+        if (dumping != null) {
+            return;
+        }
+
+        dumping = TaskExecutors.getInstance().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                String data = "[" + System.currentTimeMillis() + "]\n" + export("\n");
+                SDNCommonUtil.writeToExternalFile(data, LOG_TAG, DUMP_FILE);
+            }
+        }, intervalMs, intervalMs);
+    }
+
+    public synchronized void stopDump() {
+        if (dumping != null) {
+            TaskExecutors.getInstance().cancel(dumping);
+            dumping = null;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package eit.sdn.sdncontroller;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.DhcpInfo;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import eit.sdn.sdncontroller.core.ThroughputModel;
+
+/**
+ * Process-wide view of the current network, kept up to date by the
+ * connectivity and wifi broadcasts instead of querying the system services
+ * for every message.
+ *
+ * The system services are only asked when a connectivity or wifi state
+ * broadcast arrives, RSSI changes are taken from the broadcast itself.
+ * Every update publishes a new immutable State, so readers get a
+ * consistent snapshot without locking.
+ *
+ */
+public class NetworkStateTracker {
+
+    private static volatile NetworkStateTracker instance = null;
+
+    private Context context;
+    private volatile State state;
+    private final AtomicInteger transfers = new AtomicInteger(); // downloads measuring throughput
+    private MetricsRegistry.Counter refreshes = MetricsRegistry.getInstance().counter("network.state.refreshed");
+
+    // defaults
+    private String LOG_TAG = SDNCommonUtil.LOG_TAG;
+    private long MIN_THROUGHPUT_MS = 1000; // shorter transfers are mostly ttfb
+
+    /**
+     * snapshot of the network state
+     */
+    public static class State {
+        /** e.g. "wifi" or "mobile", "none" if there is no active network */
+        public final String type;
+        public final boolean isConnected;
+        public final boolean isWifiEnabled;
+        /** ssid without quotes, "" if wifi is not connected */
+        public final String ssid;
+        /** null if wifi is not connected */
+        public final String bssid;
+        public final int rssi;
+        /** dhcp gateway in little-endian, 0 if unknown */
+        public final int gateway;
+        public final String mac;
+        /** elapsedRealtime of the update */
+        public final long time;
+
+        State(String type, boolean isConnected, boolean isWifiEnabled, String ssid, String bssid,
+              int rssi, int gateway, String mac, long time) {
+            this.type = type;
+            this.isConnected = isConnected;
+            this.isWifiEnabled = isWifiEnabled;
+            this.ssid = ssid;
+            this.bssid = bssid;
+            this.rssi = rssi;
+            this.gateway = gateway;
+            this.mac = mac;
+            this.time = time;
+        }
+
+        /** Returns true if the active network is a connected wifi */
+        public boolean isWifiConnected() {
+            return isConnected && type.equals("wifi");
+        }
+
+        State withRssi(int newRssi) {
+            return new State(type, isConnected, isWifiEnabled, ssid, bssid, newRssi, gateway, mac,
+                             SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        public String toString() {
+            return type + (isConnected ? " connected" : " disconnected")
+                    + (bssid != null ? " " + ssid + " - " + bssid + " " + rssi : "");
+        }
+    }
+
+    private class StateReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            if (WifiManager.RSSI_CHANGED_ACTION.equals(intent.getAction())) {
+                synchronized (NetworkStateTracker.this) {
+                    int rssi = intent.getIntExtra(WifiManager.EXTRA_NEW_RSSI, state.rssi);
+                    state = state.withRssi(rssi);
+                }
+            } else {
+                refresh();
+            }
+        }
+    }
+
+    private NetworkStateTracker(Context c) {
+        context = c.getApplicationContext();
+        refresh();
+
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(WifiManager.NETWORK_STATE_CHANGED_ACTION);
+        filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
+        filter.addAction(WifiManager.RSSI_CHANGED_ACTION);
+        context.registerReceiver(new StateReceiver(), filter);
+    }
+
+    public static NetworkStateTracker getInstance(Context c) {
+        NetworkStateTracker tracker = instance;
+        if (tracker == null) {
+            synchronized (NetworkStateTracker.class) { // only lock for the creation
+                if (instance == null) {
+                    instance = new NetworkStateTracker(c);
+                }
+                tracker = instance;
+            }
+        }
+        return tracker;
+    }
+
+    /**
+     * Returns the current snapshot
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * add a transfer measured on wifi to ThroughputModel. It is only used
+     * if the device stayed on the same ap, at the average of both levels.
+     *
+     * @param start snapshot taken when the transfer started
+     * @param rate bytes per second
+     * @param durationMs duration of the transfer
+     * @param weight 1 for a complete download, less for a weaker sample
+     * @return false if the transfer was not used
+     */
+    public boolean observeThroughput(State start, long rate, long durationMs, double weight) {
+        State end = state;
+        if (!isSameAp(start, end, durationMs)) {
+            return false;
+        }
+        ThroughputModel.getInstance().observe(end.bssid, (start.rssi + end.rssi) / 2, rate, weight);
+        return true;
+    }
+
+    /**
+     * add the rate of all wifi traffic over an interval to ThroughputModel
+     * as a lower bound, see ThroughputModel.observeFloor(). It is not used
+     * while a download is running, that one is added by observeThroughput().
+     *
+     * @param start snapshot taken when the interval started
+     * @param rate bytes per second
+     * @param durationMs length of the interval
+     * @param weight of the sample
+     * @return false if the sample was not used
+     */
+    public boolean observeTraffic(State start, long rate, long durationMs, double weight) {
+        State end = state;
+        if (transfers.get() > 0 || !isSameAp(start, end, durationMs)) {
+            return false;
+        }
+        return ThroughputModel.getInstance().observeFloor(end.bssid, (start.rssi + end.rssi) / 2, rate, weight);
+    }
+
+    /**
+     * a download which will call observeThroughput() started, traffic
+     * samples are ignored until transferFinished()
+     */
+    public void transferStarted() {
+        transfers.incrementAndGet();
+    }
+
+    public void transferFinished() {
+        transfers.decrementAndGet();
+    }
+
+    private boolean isSameAp(State start, State end, long durationMs) {
+        return durationMs >= MIN_THROUGHPUT_MS && start.isWifiConnected() && end.isWifiConnected()
+               && start.bssid != null && start.bssid.equals(end.bssid);
+    }
+
+    /**
+     * query the system services and publish a new snapshot. Receivers of
+     * the same broadcasts may run before the tracker, they can call this
+     * to be sure the snapshot matches the event they got.
+     *
+     * @return the new snapshot
+     */
+    public synchronized State refresh() {
+        ConnectivityManager connMgr = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        WifiManager wifiManager = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
+
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+        boolean isConnected = networkInfo != null && networkInfo.isConnected();
+        String type = networkInfo == null ? "none" : networkInfo.getTypeName().toLowerCase();
+
+        WifiInfo wifiInfo = wifiManager.getConnectionInfo();
+        DhcpInfo dhcpInfo = wifiManager.getDhcpInfo();
+        String bssid = wifiInfo == null ? null : wifiInfo.getBSSID();
+        String ssid = bssid == null || wifiInfo.getSSID() == null ? "" : wifiInfo.getSSID().replace("\"", "");
+
+        State s = new State(type, isConnected, wifiManager.isWifiEnabled(), ssid, bssid,
+                            wifiInfo == null ? 0 : wifiInfo.getRssi(),
+                            dhcpInfo == null ? 0 : dhcpInfo.gateway,
+                            wifiInfo == null ? null : wifiInfo.getMacAddress(),
+                            SystemClock.elapsedRealtime());
+        state = s;
+        refreshes.inc();
+        Log.d(LOG_TAG, "network state: " + s);
+        return s;
+    }
+}
@@ -0,0 +1,231 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package eit.sdn.sdncontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+
+import eit.sdn.sdncontroller.core.AgentReply;
+
+/**
+ * Replies of the sub-commands of one bundle message, collected into a
+ * single aggregated reply instead of one datagram each.
+ *
+ * While a bundle is active, UDPSendingTask offers every reply to it. The
+ * replies whose type is the one of the running sub-command are kept, all
+ * others are sent as usual. Only one bundle is active at a time.
+ *
+ * finish() ends collecting and returns the aggregated reply once, either
+ * when all sub-commands are done or when the deadline timer fires while a
+ * sub-command still blocks, whichever comes first.
+ *
+ */
+class ReplyBundle {
+
+    private static volatile ReplyBundle active = null;
+
+    private static final String TYPE = "bundle";
+    private static final String TRUNCATED = "truncated";
+
+    private final String id;
+    private final long deadline;
+    private final String[] types;
+    private final String[] statuses;
+    private int running = -1; // index of the running sub-command
+    private boolean isFinished = false;
+    private String expectedType = null;
+    private int expectedReplies = 0;
+    private final List<String> replies = new ArrayList<String>();
+
+    /**
+     * @param id chosen by the controller, returned in the reply
+     * @param deadline elapsedRealtime when the bundle gives up
+     * @param types of the sub-commands in the order they run
+     */
+    ReplyBundle(String id, long deadline, String[] types) {
+        this.id = id;
+        this.deadline = deadline;
+        this.types = types;
+        this.statuses = new String[types.length];
+    }
+
+    /**
+     * make a bundle the active one, null ends collecting
+     */
+    static void setActive(ReplyBundle bundle) {
+        active = bundle;
+    }
+
+    /**
+     * called for every outgoing reply
+     *
+     * @return true if the reply was taken by the active bundle and must
+     *         not be sent
+     */
+    static boolean offer(String reply) {
+        ReplyBundle bundle = active;
+        return bundle != null && bundle.capture(reply);
+    }
+
+    String getId() {
+        return id;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    boolean isExpired() {
+        return SystemClock.elapsedRealtime() >= deadline;
+    }
+
+    synchronized boolean isFinished() {
+        return isFinished;
+    }
+
+    /**
+     * start sub-command index, its replies are collected until end()
+     *
+     * @return false if the bundle is already finished
+     */
+    synchronized boolean start(int index) {
+        if (isFinished) {
+            return false;
+        }
+        running = index;
+        expectedType = types[index];
+        expectedReplies = 0;
+        return true;
+    }
+
+    /**
+     * set the result of sub-command index, e.g. "ok"
+     */
+    synchronized void end(int index, String status) {
+        statuses[index] = status;
+        if (running == index) {
+            running = -1;
+            expectedType = null;
+        }
+    }
+
+    /** Returns the replies collected since the last start() */
+    synchronized int getExpectedReplies() {
+        return expectedReplies;
+    }
+
+    /**
+     * wait for a reply at most ms, until the deadline or until finished
+     */
+    synchronized void await(long ms) throws InterruptedException {
+        long left = Math.min(ms, deadline - SystemClock.elapsedRealtime());
+        if (left > 0 && !isFinished) {
+            wait(left);
+        }
+    }
+
+    /**
+     * end collecting and return the aggregated reply, split into packets
+     * of at most maxLength chars:
+     * "s|bundle|mac|id|part&parts|type&status|type&status..." followed by
+     * collected replies, one per line. Only the first packet has the
+     * statuses, the others start with "s|bundle|mac|id|part&parts". The
+     * running sub-command gets timeout, not started ones skipped. A reply
+     * longer than a packet is cut after a field and gets "|truncated".
+     *
+     * @return null if the bundle was finished before
+     */
+    synchronized List<String> finish(String mac, int maxLength) {
+        if (isFinished) {
+            return null;
+        }
+        isFinished = true;
+        if (active == this) {
+            active = null;
+        }
+        notifyAll();
+
+        String[] fields = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            String status = statuses[i] != null ? statuses[i] : (i == running ? "timeout" : "skipped");
+            fields[i] = types[i] + "&" + status;
+        }
+
+        // the part numbers are at most replies.size() + 1
+        String maxPart = (replies.size() + 1) + "&" + (replies.size() + 1);
+        AgentReply first = new AgentReply(TYPE, mac).add(id).add(maxPart);
+        for (String f: fields) {
+            first.add(f);
+        }
+        int firstLength = first.toString().length();
+        int otherLength = new AgentReply(TYPE, mac).add(id).add(maxPart).toString().length();
+
+        List<List<String>> parts = new ArrayList<List<String>>();
+        List<String> part = new ArrayList<String>();
+        int partLength = firstLength;
+        for (String r: replies) {
+            int max = maxLength - (parts.isEmpty() ? firstLength : otherLength) - 1;
+            String line = r.length() > max ? truncate(r, max) : r;
+            if (!part.isEmpty() && partLength + line.length() + 1 > maxLength) {
+                parts.add(part);
+                part = new ArrayList<String>();
+                partLength = otherLength;
+                max = maxLength - otherLength - 1;
+                line = r.length() > max ? truncate(r, max) : r;
+            }
+            part.add(line);
+            partLength += line.length() + 1;
+        }
+        parts.add(part);
+
+        List<String> packets = new ArrayList<String>();
+        for (int i = 0; i < parts.size(); i++) {
+            AgentReply reply = new AgentReply(TYPE, mac).add(id).add((i + 1) + "&" + parts.size());
+            if (i == 0) {
+                for (String f: fields) {
+                    reply.add(f);
+                }
+            }
+            StringBuilder sb = new StringBuilder(reply.toString());
+            for (String line: parts.get(i)) {
+                sb.append("\n").append(line);
+            }
+            packets.add(sb.toString());
+        }
+        return packets;
+    }
+
+    /* cut a reply after the last field which fits into max chars */
+    private static String truncate(String reply, int max) {
+        int end = Math.max(0, max - TRUNCATED.length() - 1);
+        int cut = reply.lastIndexOf('|', end);
+        return reply.substring(0, cut > 0 ? cut : end) + "|" + TRUNCATED;
+    }
+
+    private synchronized boolean capture(String reply) {
+        if (isFinished || expectedType == null || !reply.startsWith("s|" + expectedType + "|")) {
+            return false;
+        }
+        replies.add(reply);
+        expectedReplies++;
+        notifyAll();
+        return true;
+    }
+}
@@ -0,0 +1,647 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Resumable single-connection download driven by an explicit state machine:
+ *
+ * CONNECTING -> TRANSFERRING -> COMPLETED
+ *      ^             |
+ *      +-- BACKOFF <-+ (connection lost)
+ *
+ * The number of confirmed bytes, the URL and the ETag/Last-Modified of the
+ * file are kept in a checkpoint file next to the download, so a download
+ * interrupted by a service restart continues from the last checkpoint.
+ * Resumed ranges are requested with If-Range and the Content-Range of the
+ * reply is checked, a changed file is downloaded again from the start.
+ *
+ * Reconnecting uses exponential backoff with full jitter, but the wait ends
+ * as soon as the network comes back after being lost, e.g. after a
+ * handover. When the caller sees the default network change it can call
+ * migrate(), which drops the connection at once and reconnects without
+ * backoff.
+ *
+ * Data is written through a FileChannel: reads fill a pooled 64 KB buffer
+ * which is written at its file position with one call, and the file is
+ * preallocated when the length is known. The buffer is a heap buffer since
+ * HttpURLConnection only offers an InputStream, a direct buffer would cost
+ * one more copy.
+ *
+ * Only java.net, java.io and java.nio are used, so this class can also run
+ * on a normal JVM.
+ *
+ */
+public class ResumableDownload {
+
+    public enum State { CONNECTING, TRANSFERRING, BACKOFF, COMPLETED, FAILED, CANCELLED }
+
+    private String url;
+    private String path;
+    private File checkpointFile;
+    private Callback callback;
+    private volatile boolean isCancelled = false;
+    private volatile boolean isMigrating = false;
+
+    private State state = State.CONNECTING;
+    private HttpURLConnection connection = null;
+    private long confirmed = 0;      // bytes written and checkpointed
+    private long length = -1;        // total length, -1 if unknown
+    private long restored = 0;       // bytes taken over from a checkpoint
+    private String etag = null;
+    private String lastModified = null;
+    private int attempts = 0;        // failed attempts in a row
+    private int reconnects = 0;
+    private long unsaved = 0;         // bytes written since the last checkpoint
+    private boolean isChannelWrite = true;
+    private boolean isKeepAlive = false;
+    private IntegrityDigest integrity = null;
+    private int chunkFailures = 0;
+    private boolean isCorrupted = false;
+    private Random random = new Random();
+
+    // write buffers are shared by all downloads instead of allocated per connection
+    private static final ConcurrentLinkedQueue<ByteBuffer> bufferPool =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final int CHANNEL_BUFF = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    // defaults
+    private int MAX_BUFF = 10240;
+    private long CHECKPOINT_BYTES = 512 * 1024;
+    private int MAX_ATTEMPTS = 12;
+    private int MAX_CHUNK_FAILURES = 3;
+    private long BASE_BACKOFF_MS = 500;
+    private long MAX_BACKOFF_MS = 30000;
+    private long ONLINE_POLL_MS = 200;
+    private int CONNECT_TIMEOUT_MS = 15000;
+    private int READ_TIMEOUT_MS = 15000;
+
+    /**
+     * environment of a download, all methods are called from the
+     * downloading thread
+     */
+    public interface Callback {
+        /** Returns whether some network is connected */
+        boolean isOnline();
+
+        /** called after every write of count bytes, length is -1 if unknown */
+        void onProgress(int count, long downloaded, long length);
+
+        /** called when the download enters a new state */
+        void onStateChanged(State state);
+    }
+
+    /**
+     * @param url file to be downloaded
+     * @param path local destination, a checkpoint file path + ".checkpoint"
+     *        is kept until the download completes
+     * @param callback
+     */
+    public ResumableDownload(String url, String path, Callback callback) {
+        this.url = url;
+        this.path = path;
+        this.callback = callback;
+        checkpointFile = new File(path + ".checkpoint");
+    }
+
+    /**
+     * choose the write path, by default a FileChannel with pooled buffers
+     * and positional writes; false uses the old stream copy
+     *
+     * @param isChannelWrite
+     */
+    public void setChannelWrite(boolean isChannelWrite) {
+        this.isChannelWrite = isChannelWrite;
+    }
+
+    /**
+     * keep the connection open after a completed download, so the next
+     * download from the same server can reuse it (http.keepAlive must not
+     * be disabled). By default every connection is closed.
+     *
+     * @param isKeepAlive
+     */
+    public void setKeepAlive(boolean isKeepAlive) {
+        this.isKeepAlive = isKeepAlive;
+    }
+
+    /**
+     * compute a digest while downloading and check it when the download
+     * is completed, a mismatch ends the download as FAILED
+     *
+     * @param integrity digest, maybe with expected values
+     */
+    public void setIntegrity(IntegrityDigest integrity) {
+        this.integrity = integrity;
+    }
+
+    public IntegrityDigest getIntegrity() {
+        return integrity;
+    }
+
+    /**
+     * stop the download, can be called from any thread
+     */
+    public void cancel() {
+        isCancelled = true;
+        HttpURLConnection c = connection;
+        if (c != null) {
+            c.disconnect(); // unblock a pending read
+        }
+    }
+
+    /**
+     * the default network changed: drop the current connection right away
+     * and reconnect from the confirmed byte as soon as some network is
+     * connected, without backoff. Can be called from any thread.
+     */
+    public void migrate() {
+        isMigrating = true;
+        HttpURLConnection c = connection;
+        if (c != null) {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * discard the downloaded data and the checkpoint
+     */
+    public void discard() {
+        new File(path).delete();
+        checkpointFile.delete();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getDownloaded() {
+        return confirmed;
+    }
+
+    /**
+     * @return bytes restored from a checkpoint of an earlier run, they
+     *         are part of getDownloaded() but were not transferred by this one
+     */
+    public long getRestored() {
+        return restored;
+    }
+
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    /**
+     * run the download until it is completed, failed or cancelled
+     *
+     * @return final state
+     * @throws FileNotFoundException if the server does not have the file
+     */
+    public State run() throws FileNotFoundException {
+        restoreCheckpoint();
+
+        while (true) {
+            if (isCancelled) {
+                setState(State.CANCELLED);
+            }
+
+            switch (state) {
+            case CONNECTING:
+                connect();
+                break;
+            case TRANSFERRING:
+                transfer();
+                break;
+            case BACKOFF:
+                backoff();
+                break;
+            default:
+                closeConnection();
+                return state;
+            }
+        }
+    }
+
+    private void setState(State newState) {
+        if (state != newState) {
+            state = newState;
+            callback.onStateChanged(newState);
+        }
+    }
+
+    private void connect() throws FileNotFoundException {
+        if (!callback.isOnline()) {
+            setState(State.BACKOFF);
+            return;
+        }
+
+        try {
+            connection = (HttpURLConnection)new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            if (!isKeepAlive) {
+                connection.setRequestProperty("Connection", "close");
+            }
+            if (confirmed > 0) {
+                connection.setRequestProperty("Range", "bytes=" + confirmed + "-");
+                String validator = etag != null ? etag : lastModified;
+                if (validator != null) {
+                    connection.setRequestProperty("If-Range", validator);
+                }
+            }
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                closeConnection();
+                setState(State.FAILED);
+                throw new FileNotFoundException(url);
+            } else if (code == 416) {
+                if (length > 0 && confirmed == length) {
+                    complete();
+                } else {
+                    restartFromBeginning();
+                }
+                return;
+            } else if (code == HttpURLConnection.HTTP_PARTIAL && confirmed > 0) {
+                if (!isRangeValid(connection.getHeaderField("Content-Range"))) {
+                    restartFromBeginning();
+                    return;
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                if (confirmed > 0) {
+                    // If-Range failed or range not supported: the whole file is sent
+                    restartFile();
+                }
+                length = connection.getContentLength();
+            } else {
+                throw new IOException("unexpected http status " + code);
+            }
+
+            etag = connection.getHeaderField("ETag");
+            lastModified = connection.getHeaderField("Last-Modified");
+            saveCheckpoint();
+            setState(State.TRANSFERRING);
+
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            closeConnection();
+            setState(State.BACKOFF);
+        }
+    }
+
+    private void transfer() {
+        RandomAccessFile output = null;
+        InputStream input = null;
+        long startConfirmed = confirmed;
+        try {
+            input = connection.getInputStream();
+            output = new RandomAccessFile(path, "rw");
+            if (isChannelWrite) {
+                if (length > 0 && output.length() < length) {
+                    output.setLength(length); // preallocate
+                }
+                copyToChannel(input, output.getChannel());
+            } else {
+                output.seek(confirmed);
+                copyToStream(input, output);
+            }
+            output.close();
+            output = null;
+            saveCheckpoint();
+
+            if (isCancelled) {
+                setState(State.CANCELLED);
+            } else if (length >= 0 && confirmed < length) {
+                throw new IOException("connection closed at " + confirmed + " of " + length);
+            } else {
+                complete();
+            }
+        } catch (IOException e) {
+            // a reconnect which made progress starts the backoff again
+            if (confirmed > startConfirmed) {
+                attempts = 0;
+            }
+            saveCheckpoint();
+            if (isCancelled) {
+                setState(State.CANCELLED);
+            } else {
+                setState(isCorrupted ? State.FAILED : State.BACKOFF);
+            }
+        } finally {
+            try {
+                if (output != null)
+                    output.close();
+            } catch (IOException ignored) {}
+            if (isKeepAlive && state == State.COMPLETED && input != null) {
+                // a fully read and closed stream returns the socket to the pool
+                try {
+                    input.close();
+                } catch (IOException ignored) {}
+                connection = null;
+            } else {
+                closeConnection();
+            }
+        }
+    }
+
+    /* old write path: a small heap buffer written to the file read by read */
+    private void copyToStream(InputStream input, RandomAccessFile output) throws IOException {
+        byte data[] = new byte[MAX_BUFF];
+        int count;
+        while (!isCancelled && (count = input.read(data)) != -1) {
+            output.write(data, 0, count);
+            onWritten(data, count);
+        }
+    }
+
+    /*
+     * fill a pooled buffer with as many reads as are available and write it
+     * at the confirmed position with one call, a slow connection still
+     * writes after every read so progress is not delayed
+     */
+    private void copyToChannel(InputStream input, FileChannel channel) throws IOException {
+        ByteBuffer buffer = acquireBuffer();
+        byte[] data = buffer.array();
+        try {
+            boolean isEnd = false;
+            while (!isCancelled && !isEnd) {
+                int filled = 0;
+                while (filled < data.length) {
+                    int count = input.read(data, filled, data.length - filled);
+                    if (count < 0) {
+                        isEnd = true;
+                        break;
+                    }
+                    filled += count;
+                    if (input.available() == 0) {
+                        break;
+                    }
+                }
+
+                buffer.clear();
+                buffer.limit(filled);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, confirmed + buffer.position());
+                }
+                if (filled > 0) {
+                    onWritten(data, filled);
+                }
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private void onWritten(byte[] data, int count) throws IOException {
+        if (integrity != null && !integrity.update(data, 0, count)) {
+            // a chunk does not match the manifest, fetch it again
+            confirmed = integrity.rollback();
+            saveCheckpoint();
+            if (++chunkFailures > MAX_CHUNK_FAILURES) {
+                isCorrupted = true;
+            }
+            throw new IOException("chunk at " + confirmed + " does not match the manifest");
+        }
+
+        confirmed += count;
+        unsaved += count;
+        if (unsaved >= CHECKPOINT_BYTES) {
+            saveCheckpoint();
+        }
+        callback.onProgress(count, confirmed, length);
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(CHANNEL_BUFF);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        if (bufferPool.size() < MAX_POOLED_BUFFERS) {
+            bufferPool.offer(buffer);
+        }
+    }
+
+    private void backoff() {
+        if (isMigrating) {
+            isMigrating = false;
+            // no backoff, only wait until the new network is up
+            long deadline = System.currentTimeMillis() + MAX_BACKOFF_MS;
+            while (!isCancelled && !callback.isOnline() && System.currentTimeMillis() < deadline) {
+                sleep(ONLINE_POLL_MS);
+            }
+            reconnects++;
+            setState(State.CONNECTING);
+            return;
+        }
+
+        attempts++;
+        if (attempts > MAX_ATTEMPTS) {
+            setState(State.FAILED);
+            return;
+        }
+
+        long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempts, 16));
+        long delay = (long)(random.nextDouble() * cap); // full jitter
+        long deadline = System.currentTimeMillis() + delay;
+        boolean wasOnline = callback.isOnline();
+
+        while (!isCancelled && System.currentTimeMillis() < deadline) {
+            sleep(Math.min(ONLINE_POLL_MS, Math.max(1, deadline - System.currentTimeMillis())));
+            boolean isOnline = callback.isOnline();
+            if (isOnline && !wasOnline) {
+                break; // network is back, e.g. after a handover
+            }
+            wasOnline = isOnline;
+        }
+
+        reconnects++;
+        setState(State.CONNECTING);
+    }
+
+    /* check "bytes first-last/total" of a resumed reply */
+    private boolean isRangeValid(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return false;
+        }
+        try {
+            String range = contentRange.substring(6);
+            int dash = range.indexOf('-');
+            int slash = range.indexOf('/');
+            long first = Long.parseLong(range.substring(0, dash).trim());
+            String total = range.substring(slash + 1).trim();
+            if (!total.equals("*")) {
+                long newLength = Long.parseLong(total);
+                if (length > 0 && newLength != length) {
+                    return false;
+                }
+                length = newLength;
+            }
+            return first == confirmed;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /* verify the digest, if any, and finish the download */
+    private void complete() {
+        checkpointFile.delete();
+        if (integrity != null && !integrity.finish()) {
+            setState(State.FAILED);
+        } else {
+            setState(State.COMPLETED);
+        }
+    }
+
+    private void restartFromBeginning() {
+        closeConnection();
+        restartFile();
+        setState(State.CONNECTING);
+    }
+
+    private void restartFile() {
+        if (integrity != null) {
+            integrity.reset();
+        }
+        new File(path).delete();
+        confirmed = 0;
+        length = -1;
+        etag = null;
+        lastModified = null;
+    }
+
+    private void closeConnection() {
+        if (connection != null) {
+            connection.disconnect();
+            connection = null;
+        }
+    }
+
+    /* continue from a checkpoint of the same url, otherwise start over */
+    private void restoreCheckpoint() {
+        File file = new File(path);
+        Properties p = new Properties();
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(checkpointFile);
+            p.load(in);
+            long saved = Long.parseLong(p.getProperty("confirmed", "0"));
+            if (url.equals(p.getProperty("url")) && file.length() >= saved) {
+                confirmed = saved;
+                length = Long.parseLong(p.getProperty("length", "-1"));
+                etag = p.getProperty("etag");
+                lastModified = p.getProperty("lastModified");
+                if (integrity != null) {
+                    long position = integrity.restore(p, confirmed);
+                    if (position < 0) {
+                        throw new IOException("checkpoint without matching digest state");
+                    }
+                    confirmed = position; // continue from the last hashed chunk
+                }
+
+                // drop bytes written after the last checkpoint
+                RandomAccessFile f = new RandomAccessFile(file, "rw");
+                try {
+                    f.setLength(confirmed);
+                } finally {
+                    f.close();
+                }
+                restored = confirmed;
+                return;
+            }
+        } catch (IOException e) {
+            // no usable checkpoint
+        } catch (NumberFormatException e) {
+            // broken checkpoint
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ignored) {}
+        }
+
+        file.delete();
+        checkpointFile.delete();
+        confirmed = 0;
+    }
+
+    /* write the checkpoint to a temporary file first, then rename it */
+    private void saveCheckpoint() {
+        unsaved = 0;
+        Properties p = new Properties();
+        p.setProperty("url", url);
+        if (integrity != null) {
+            integrity.save(p);
+        }
+        p.setProperty("confirmed", Long.toString(confirmed));
+        p.setProperty("length", Long.toString(length));
+        if (etag != null) {
+            p.setProperty("etag", etag);
+        }
+        if (lastModified != null) {
+            p.setProperty("lastModified", lastModified);
+        }
+
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            p.store(out, null);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(checkpointFile)) {
+                checkpointFile.delete();
+                tmp.renameTo(checkpointFile);
+            }
+        } catch (IOException e) {
+            // keep the previous checkpoint
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
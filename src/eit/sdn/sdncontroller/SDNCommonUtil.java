@@ -21,14 +21,15 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.NetworkInfo;
-import android.net.wifi.WifiManager;
 import android.os.Environment;
 import android.util.Log;
 
+import eit.sdn.sdncontroller.core.IpAddressUtil;
+
 /**
  * Here are some common functions which are always used in different
  * activities and services
@@ -39,6 +40,11 @@ import android.util.Log;
 public class SDNCommonUtil {
 
     public static String LOG_TAG = "eitsdncontroller";
+
+    // the agent always runs on the current gateway, keep its address
+    // until the dhcp gateway changes
+    private static int cachedGateway = 0;
+    private static InetAddress cachedGatewayAddress = null;
     
     
     /**
@@ -49,19 +55,26 @@ public class SDNCommonUtil {
      * @throws IllegalArgumentException if <code>ip</code> is invalid
      */
     public static String littleEndianIntToIpAddress(int ip) {
-        // if ip is smaller than 0.0.0.0
-        if (ip < 0) {
-            throw new IllegalArgumentException("invalid ip");
-        }
-        StringBuilder ipAddress = new StringBuilder();
-        for (int i = 0; i <= 3; i++) {
-            int shift = i * 8;
-            ipAddress.append((ip & (0xff << shift)) >> shift);
-            if (i < 3) {
-                ipAddress.append(".");
-            }
+        return IpAddressUtil.littleEndianIntToIpAddress(ip);
+    }
+
+    /**
+     * Returns the address of the current gateway, i.e. the SDN AP agent.
+     * The resolved address is cached and reused as long as the dhcp gateway
+     * of NetworkStateTracker stays the same
+     *
+     * @param c context
+     * @return address of the current gateway
+     * @throws IllegalArgumentException if the gateway is invalid
+     * @throws UnknownHostException if the address can not be resolved
+     */
+    public static synchronized InetAddress getGatewayAddress(Context c) throws UnknownHostException {
+        int gateway = NetworkStateTracker.getInstance(c).getState().gateway;
+        if (cachedGatewayAddress == null || gateway != cachedGateway) {
+            cachedGatewayAddress = InetAddress.getByName(littleEndianIntToIpAddress(gateway));
+            cachedGateway = gateway;
         }
-        return ipAddress.toString();
+        return cachedGatewayAddress;
     }
 
     /* Checks if external storage is available for read and write */
@@ -122,9 +135,7 @@ public class SDNCommonUtil {
      * @param activity context
      */
     public static boolean isWifiEnabled(Context c) {
-        WifiManager wifiManager = (WifiManager)c.getSystemService(Context.WIFI_SERVICE);
-
-        return (wifiManager.isWifiEnabled());
+        return NetworkStateTracker.getInstance(c).getState().isWifiEnabled;
     }
 
     
@@ -134,9 +145,6 @@ public class SDNCommonUtil {
      * @param activity context
      */
     public static boolean isOnline(Context c) {
-        ConnectivityManager connMgr = (ConnectivityManager)
-                c.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
-        return (networkInfo != null && networkInfo.isConnected());
+        return NetworkStateTracker.getInstance(c).getState().isConnected;
     }
 }
@@ -0,0 +1,122 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package eit.sdn.sdncontroller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.net.wifi.ScanResult;
+import android.os.SystemClock;
+
+import eit.sdn.sdncontroller.core.ApScorer;
+
+/**
+ * Process-wide cache of the latest wifi scan results, fed by every
+ * receiver of the scan broadcast, so a scan request can be answered
+ * without keeping the radio busy when a scan has just finished.
+ *
+ * Each update publishes a new immutable Snapshot with the time the results
+ * arrived, readers decide how old a snapshot they accept. The levels of
+ * every update also go into the ApScorer, which uses them as the RSSI
+ * trend of each ap.
+ *
+ */
+public class ScanCache {
+
+    private static final ScanCache instance = new ScanCache();
+
+    private volatile Snapshot snapshot = null;
+    private final ApScorer scorer = new ApScorer();
+    private MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private MetricsRegistry.Counter updates = metrics.counter("scan.cache.updated");
+    private MetricsRegistry.Counter hits = metrics.counter("scan.cache.hit");
+    private MetricsRegistry.Counter misses = metrics.counter("scan.cache.miss");
+
+    /**
+     * results of one scan
+     */
+    public static class Snapshot {
+        public final List<ScanResult> results;
+        /** elapsedRealtime when the results arrived */
+        public final long time;
+
+        Snapshot(List<ScanResult> results, long time) {
+            this.results = results;
+            this.time = time;
+        }
+
+        /** Returns the age in ms */
+        public long getAgeMs() {
+            return SystemClock.elapsedRealtime() - time;
+        }
+    }
+
+    private ScanCache() {
+    }
+
+    public static ScanCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * store the results of a finished scan
+     *
+     * @param results from WifiManager.getScanResults(), may be null
+     * @return the new snapshot
+     */
+    public Snapshot update(List<ScanResult> results) {
+        List<ScanResult> copy = results == null ? new ArrayList<ScanResult>()
+                                                : new ArrayList<ScanResult>(results);
+        Snapshot s = new Snapshot(Collections.unmodifiableList(copy), SystemClock.elapsedRealtime());
+        for (ScanResult r: copy) {
+            scorer.observe(r.BSSID, r.level, s.time);
+        }
+        snapshot = s;
+        updates.inc();
+        return s;
+    }
+
+    /**
+     * Returns the scorer which has seen all scans of the cache
+     */
+    public ApScorer getScorer() {
+        return scorer;
+    }
+
+    /**
+     * Returns the latest snapshot, null if no scan has finished yet
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Returns the latest snapshot if it is at most maxAgeMs old, otherwise
+     * null and the caller has to scan
+     */
+    public Snapshot getFresh(long maxAgeMs) {
+        Snapshot s = snapshot;
+        if (s != null && maxAgeMs >= 0 && s.getAgeMs() <= maxAgeMs) {
+            hits.inc();
+            return s;
+        }
+        misses.inc();
+        return null;
+    }
+}
@@ -0,0 +1,281 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Download one file over several parallel HTTP Range connections.
+ *
+ * The file is preallocated and split into equal byte ranges, each worker
+ * writes its range at the right offset. A worker which finishes early
+ * takes over the upper half of the range with the most bytes left, so one
+ * slow connection does not hold back the whole download.
+ *
+ * This class only depends on java.net, so it can also be benchmarked on a
+ * normal JVM (see tools/).
+ *
+ */
+public class SegmentedDownloader {
+
+    private String url;
+    private String path;
+    private int connections;
+    private volatile boolean isCancelled = false;
+    private Listener listener = null;
+
+    private long fileLength = -1;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final AtomicLong downloaded = new AtomicLong();
+    private IOException failure = null;
+
+    // defaults
+    private int MAX_BUFF = 32 * 1024;
+    private long MIN_STEAL_BYTES = 256 * 1024; // do not split smaller ranges
+    private int CONNECT_TIMEOUT_MS = 10000;
+    private int READ_TIMEOUT_MS = 10000;
+
+    /**
+     * progress callback, called from the worker threads
+     */
+    public interface Listener {
+        void onProgress(long downloaded, long total);
+    }
+
+    /* byte range [next, end) still to be fetched by one worker */
+    private static class Segment {
+        long next;
+        long end;
+
+        Segment(long start, long end) {
+            this.next = start;
+            this.end = end;
+        }
+
+        long remaining() {
+            return end - next;
+        }
+    }
+
+    private class Worker extends Thread {
+        private Segment segment;
+
+        Worker(Segment segment, int id) {
+            super("SegmentedDownloader-" + id);
+            this.segment = segment;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (segment != null && !isCancelled) {
+                    fetch(segment);
+                    segment = steal();
+                }
+            } catch (IOException e) {
+                synchronized (segments) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+                isCancelled = true;
+            }
+        }
+    }
+
+    /**
+     * @param url file to be downloaded, the server must support Range
+     * @param path local destination, overwritten if it exists
+     * @param connections number of parallel connections
+     */
+    public SegmentedDownloader(String url, String path, int connections) {
+        this.url = url;
+        this.path = path;
+        this.connections = Math.max(1, connections);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * run the download and block until it is finished
+     *
+     * @return number of bytes downloaded
+     * @throws IOException if the length is unknown, any connection fails,
+     *         or the downloaded size does not match the content length
+     */
+    public long download() throws IOException {
+        fileLength = probeLength();
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(fileLength);
+        } finally {
+            file.close();
+        }
+
+        long size = (fileLength + connections - 1) / connections;
+        for (long start = 0; start < fileLength; start += size) {
+            segments.add(new Segment(start, Math.min(fileLength, start + size)));
+        }
+
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < segments.size(); i++) {
+            Worker w = new Worker(segments.get(i), i);
+            workers.add(w);
+            w.start();
+        }
+        for (Worker w: workers) {
+            try {
+                w.join();
+            } catch (InterruptedException e) {
+                isCancelled = true;
+                Thread.currentThread().interrupt();
+                throw new IOException("segmented download interrupted");
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        if (!isCancelled && downloaded.get() != fileLength) {
+            throw new IOException("downloaded " + downloaded.get() + " bytes, expected " + fileLength);
+        }
+        return downloaded.get();
+    }
+
+    /* Returns the total length from a one-byte range request */
+    private long probeLength() throws IOException {
+        HttpURLConnection connection = open(0, 0);
+        try {
+            int code = connection.getResponseCode();
+            String range = connection.getHeaderField("Content-Range");
+            if (code != HttpURLConnection.HTTP_PARTIAL || range == null || range.indexOf('/') < 0) {
+                throw new IOException("server does not support range requests (" + code + ")");
+            }
+            String total = range.substring(range.indexOf('/') + 1).trim();
+            if (total.equals("*")) {
+                throw new IOException("server does not report content length");
+            }
+            return Long.parseLong(total);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private HttpURLConnection open(long first, long last) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestProperty("Range", "bytes=" + first + "-" + last);
+        return connection;
+    }
+
+    /* fetch one segment until it is done or its end is moved by a thief */
+    private void fetch(Segment segment) throws IOException {
+        long first;
+        long last;
+        synchronized (segments) {
+            first = segment.next;
+            last = segment.end - 1;
+        }
+        if (first > last) {
+            return;
+        }
+
+        HttpURLConnection connection = open(first, last);
+        InputStream input = null;
+        RandomAccessFile output = new RandomAccessFile(path, "rw");
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("range " + first + "-" + last + " not served as partial content");
+            }
+            input = connection.getInputStream();
+            output.seek(first);
+
+            byte[] data = new byte[MAX_BUFF];
+            int count;
+            while (!isCancelled && (count = input.read(data)) != -1) {
+                int accepted;
+                boolean isDone;
+                synchronized (segments) {
+                    // the end may have been moved down by another worker
+                    accepted = (int)Math.min(count, segment.end - segment.next);
+                    segment.next += accepted;
+                    isDone = segment.remaining() <= 0;
+                }
+                output.write(data, 0, accepted);
+                long done = downloaded.addAndGet(accepted);
+                if (listener != null) {
+                    listener.onProgress(done, fileLength);
+                }
+                if (isDone) {
+                    break;
+                }
+            }
+
+            synchronized (segments) {
+                if (!isCancelled && segment.remaining() > 0) {
+                    throw new IOException("connection closed before range " + first + "-" + last + " finished");
+                }
+            }
+        } finally {
+            output.close();
+            if (input != null) {
+                input.close();
+            }
+            connection.disconnect();
+        }
+    }
+
+    /* take over the upper half of the largest remaining range */
+    private Segment steal() {
+        synchronized (segments) {
+            Segment victim = null;
+            for (Segment s: segments) {
+                if (victim == null || s.remaining() > victim.remaining()) {
+                    victim = s;
+                }
+            }
+            if (victim == null || victim.remaining() < MIN_STEAL_BYTES) {
+                return null;
+            }
+
+            long middle = victim.next + victim.remaining() / 2;
+            Segment stolen = new Segment(middle, victim.end);
+            victim.end = middle;
+            segments.add(stolen);
+            return stolen;
+        }
+    }
+}
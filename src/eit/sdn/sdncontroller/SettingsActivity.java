@@ -19,16 +19,13 @@ package eit.sdn.sdncontroller;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.os.Bundle;
-import android.os.SystemClock;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
-import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -53,6 +50,8 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
     // others
     private String WIFI_SCAN_INTERVAL = "pref_wifi_scan_interval";
     private String CONNECTING_TEST_TIMEOUT = "pref_connecting_test_timeout";
+    private String UID_SAMPLE_PERIOD = "pref_uid_sample_period";
+    private String SWITCH_TIMEOUT = "pref_switch_timeout";
     private String logTag = SDNCommonUtil.LOG_TAG;
 
     @SuppressWarnings("deprecation")
@@ -77,6 +76,18 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
             prefConnectTimeout.setSummary(timeout + "ms");
         }
 
+        ListPreference prefSamplePeriod  = (ListPreference) findPreference(UID_SAMPLE_PERIOD);
+        String period = prefSamplePeriod.getValue();
+        if (period != null) {
+            prefSamplePeriod.setSummary(period + "ms");
+        }
+
+        ListPreference prefSwitchTimeout  = (ListPreference) findPreference(SWITCH_TIMEOUT);
+        String switchTimeout = prefSwitchTimeout.getValue();
+        if (switchTimeout != null) {
+            prefSwitchTimeout.setSummary(switchTimeout + "ms");
+        }
+
         // udp port
         EditTextPreference editTextPref = (EditTextPreference) findPreference(UDP_PORT_KEY);
         String portString = pref.getString(UDP_PORT_KEY, DEFAULT_UDP_PORT);
@@ -140,19 +151,9 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
             int udpServerPort = Integer.parseInt(portString);
             if (1024 <= udpServerPort && udpServerPort <= 65535) {
                 pref.setSummary(text.getText());
+                // a running UDP server rebinds by itself, see ListenerConfig
                 Log.i(logTag, "set udp port number to " + text.getText());
 
-                // check whether udp server is running
-                SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
-                if (preferences.getBoolean("sdnSwitch", false)) {
-                    Intent udpListeningIntent = new Intent(this, UDPListeningService.class);
-
-                    Log.d(logTag, "try to stop UDP server for resetting port number");
-                    stopService(udpListeningIntent);
-                    SystemClock.sleep(1000);
-                    startService(udpListeningIntent);
-                }
-
             } else {
                 CharSequence message = "illegal port number, set back to default!";
                 int duration = Toast.LENGTH_LONG;
@@ -200,7 +201,15 @@ public class SettingsActivity extends PreferenceActivity implements OnSharedPref
             ListPreference prefConnectTimeout  = (ListPreference) pref;
             String timeout = prefConnectTimeout.getValue();
             prefConnectTimeout.setSummary(timeout + "ms");
-        } else {
+        } else if (arg1.equals(UID_SAMPLE_PERIOD)) {
+            ListPreference prefSamplePeriod  = (ListPreference) pref;
+            String period = prefSamplePeriod.getValue();
+            prefSamplePeriod.setSummary(period + "ms");
+        } else if (arg1.equals(SWITCH_TIMEOUT)) {
+            ListPreference prefSwitchTimeout  = (ListPreference) pref;
+            String timeout = prefSwitchTimeout.getValue();
+            prefSwitchTimeout.setSummary(timeout + "ms");
+        } else if (!ListenerConfig.isLiveKey(arg1)) {
             CharSequence text = "New settings will take effect after restarting the service";
             int duration = Toast.LENGTH_LONG;
 
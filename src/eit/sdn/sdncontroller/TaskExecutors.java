@@ -0,0 +1,307 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Process-wide executors for background work of all services, instead of
+ * one AsyncTask, Timer or thread per job.
+ *
+ * There are named pools with a fixed number of threads and a bounded queue,
+ * and one scheduler for periodic tasks:
+ *
+ *   UDP  one thread, replies to the agent go out in order
+ *   IO   blocking network work, e.g. connection tests and benchmarks
+ *
+ * Every pool reports its queue depth, the time tasks wait in the queue and
+ * their running time as metrics executor.NAME.queued, executor.NAME.wait.ms
+ * and executor.NAME.run.ms, and the tasks it rejected as
+ * executor.NAME.rejected. The scheduler reports how late periodic tasks
+ * start as executor.scheduler.late.ms.
+ *
+ * Services call acquire() when they are created and release() when they are
+ * destroyed. After the last release the executors are shut down: queued
+ * tasks still run, periodic tasks stop. They are created again on next use.
+ *
+ */
+public class TaskExecutors {
+
+    public static final String UDP = "udp";
+    public static final String IO = "io";
+
+    private static final TaskExecutors instance = new TaskExecutors();
+
+    private final Map<String, Pool> pools = new HashMap<String, Pool>();
+    private Scheduler scheduler = null;
+    private int users = 0;
+
+    // defaults
+    private String LOG_TAG = SDNCommonUtil.LOG_TAG;
+    private int UDP_THREADS = 1;
+    private int UDP_QUEUE = 256;
+    private int IO_THREADS = 2;
+    private int IO_QUEUE = 16;
+    private int SCHEDULER_THREADS = 2;
+    private long KEEP_ALIVE_SECONDS = 30;
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadNum = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // same priority as AsyncTask threads
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, name + "-" + threadNum.incrementAndGet());
+        }
+    }
+
+    /**
+     * bounded pool which measures queue wait and running time of its tasks
+     */
+    private static class Pool extends ThreadPoolExecutor {
+        private final MetricsRegistry.Gauge queued;
+        private final MetricsRegistry.Counter rejected;
+        private final LatencyHistogram waitTime;
+        private final LatencyHistogram runTime;
+
+        Pool(String name, int threads, int queueSize, long keepAliveSeconds) {
+            super(threads, threads, keepAliveSeconds, TimeUnit.SECONDS,
+                  new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory(name));
+            allowCoreThreadTimeOut(true);
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            queued = metrics.gauge("executor." + name + ".queued");
+            rejected = metrics.counter("executor." + name + ".rejected");
+            waitTime = metrics.histogram("executor." + name + ".wait.ms");
+            runTime = metrics.histogram("executor." + name + ".run.ms");
+        }
+
+        @Override
+        public void execute(final Runnable task) {
+            final long queuedTime = SystemClock.elapsedRealtime();
+            try {
+                super.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = SystemClock.elapsedRealtime();
+                        waitTime.record(start - queuedTime);
+                        queued.set(getQueue().size());
+                        try {
+                            task.run();
+                        } finally {
+                            runTime.record(SystemClock.elapsedRealtime() - start);
+                        }
+                    }
+                });
+                queued.set(getQueue().size());
+            } catch (RejectedExecutionException e) {
+                rejected.inc();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * scheduler which measures how late its tasks start
+     */
+    private static class Scheduler extends ScheduledThreadPoolExecutor {
+        private final ThreadLocal<Long> startTime = new ThreadLocal<Long>();
+        private final MetricsRegistry.Gauge queued;
+        private final LatencyHistogram lateTime;
+        private final LatencyHistogram runTime;
+
+        Scheduler(int threads) {
+            super(threads, new NamedThreadFactory("scheduler"));
+            setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+            setContinueExistingPeriodicTasksAfterShutdownPolicy(false);
+            MetricsRegistry metrics = MetricsRegistry.getInstance();
+            queued = metrics.gauge("executor.scheduler.queued");
+            lateTime = metrics.histogram("executor.scheduler.late.ms");
+            runTime = metrics.histogram("executor.scheduler.run.ms");
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            super.beforeExecute(t, r);
+            if (r instanceof Delayed) {
+                // the delay is negative once the task is due
+                lateTime.record(Math.max(0, -((Delayed)r).getDelay(TimeUnit.MILLISECONDS)));
+            }
+            queued.set(getQueue().size());
+            startTime.set(SystemClock.elapsedRealtime());
+        }
+
+        @Override
+        protected void afterExecute(Runnable r, Throwable t) {
+            super.afterExecute(r, t);
+            Long start = startTime.get();
+            if (start != null) {
+                runTime.record(SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    private TaskExecutors() {
+    }
+
+    public static TaskExecutors getInstance() {
+        return instance;
+    }
+
+    /**
+     * register a user, e.g. a service in its onCreate()
+     */
+    public synchronized void acquire(String owner) {
+        users++;
+        Log.d(LOG_TAG, "executors acquired by " + owner + ", users: " + users);
+    }
+
+    /**
+     * unregister a user, the executors are shut down after the last one
+     */
+    public synchronized void release(String owner) {
+        users = Math.max(0, users - 1);
+        Log.d(LOG_TAG, "executors released by " + owner + ", users: " + users);
+        if (users == 0) {
+            shutdown();
+        }
+    }
+
+    /**
+     * run a task in a pool
+     *
+     * @param pool UDP or IO
+     * @return false if the queue of the pool is full
+     */
+    public boolean execute(String pool, Runnable task) {
+        try {
+            getPool(pool).execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(LOG_TAG, "executor " + pool + " is full, task dropped");
+            return false;
+        }
+    }
+
+    /**
+     * run a task in a pool and get its result later
+     *
+     * @throws RejectedExecutionException if the queue of the pool is full
+     */
+    public <T> Future<T> submit(String pool, Callable<T> task) {
+        return getPool(pool).submit(task);
+    }
+
+    /**
+     * run a task once after a delay
+     *
+     * @return used for cancelling the task
+     */
+    public ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return getScheduler().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * run a task repeatedly, the period is counted from the end of a run
+     * like for Timer.schedule()
+     *
+     * @return used for cancelling the task
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long initialDelayMs, long delayMs) {
+        return getScheduler().scheduleWithFixedDelay(task, initialDelayMs, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * cancel a scheduled task and drop it from the queue
+     */
+    public void cancel(ScheduledFuture<?> future) {
+        if (future != null) {
+            future.cancel(false);
+            Scheduler s = scheduler;
+            if (s != null) {
+                s.purge();
+            }
+        }
+    }
+
+    /** Returns the number of tasks waiting in a pool */
+    public synchronized int getQueueDepth(String pool) {
+        Pool p = pools.get(pool);
+        return p == null ? 0 : p.getQueue().size();
+    }
+
+    private synchronized Pool getPool(String name) {
+        Pool p = pools.get(name);
+        if (p == null || p.isShutdown()) {
+            if (name.equals(UDP)) {
+                p = new Pool(UDP, UDP_THREADS, UDP_QUEUE, KEEP_ALIVE_SECONDS);
+            } else if (name.equals(IO)) {
+                p = new Pool(IO, IO_THREADS, IO_QUEUE, KEEP_ALIVE_SECONDS);
+            } else {
+                throw new IllegalArgumentException("unknown executor " + name);
+            }
+            pools.put(name, p);
+        }
+        return p;
+    }
+
+    private synchronized Scheduler getScheduler() {
+        if (scheduler == null || scheduler.isShutdown()) {
+            scheduler = new Scheduler(SCHEDULER_THREADS);
+        }
+        return scheduler;
+    }
+
+    /* queued tasks still run, nothing new is accepted */
+    private synchronized void shutdown() {
+        for (Pool p: pools.values()) {
+            p.shutdown();
+        }
+        pools.clear();
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        Log.i(LOG_TAG, "executors shut down");
+    }
+}
@@ -0,0 +1,208 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.net.InetAddress;
+import java.util.concurrent.ScheduledFuture;
+
+import android.content.Context;
+import android.net.TrafficStats;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Push batched telemetry reports to the agent after a "subscribe" message,
+ * so the controller does not need to poll scan/app/motion one by one.
+ *
+ * The throughput is sampled every second and all samples of one interval
+ * are sent together, delta encoded. Other fields are only sent when they
+ * changed, except every KEYFRAME_REPORTS-th report which is always full.
+ * A report looks like:
+ *
+ * s|telemetry|mac|seq|full_or_delta|tp=first&delta&delta...|rssi=-60|bssid=..|motion=static|app=download&pkg
+ *
+ * throughput samples are in KB/s (rx + tx of all interfaces).
+ *
+ */
+public class TelemetryReporter {
+
+    private Context context;
+    private AppClassifier appClassifier;
+    private UidTrafficSampler uidTrafficSampler;
+    private ScheduledFuture<?> reporting = null;
+    private long intervalMs = 0;
+
+    // state shared with the listening service
+    private volatile String motionState = "unknown";
+
+    // samples of the current interval
+    private long[] samples = new long[MAX_BATCH];
+    private int sampleNum = 0;
+    private long lastBytes = -1;
+    private long lastSampleTime = 0;
+
+    // last sent values, used for suppressing unchanged fields
+    private int seq = 0;
+    private long lastThroughput = 0;
+    private String lastRssi = null;
+    private String lastBssid = null;
+    private String lastMotion = null;
+    private String lastApp = null;
+
+    // defaults
+    private String LOG_TAG = SDNCommonUtil.LOG_TAG;
+    private int AGENT_PORT = 6777;
+    public static final long MIN_INTERVAL_MS = 1000;
+    public static final long MAX_INTERVAL_MS = 60000;
+    private static final int MAX_BATCH = 60;
+    private int KEYFRAME_REPORTS = 10;
+    private int RSSI_STEP = 3; // smaller rssi changes are not reported
+
+    private class SamplingTask implements Runnable {
+        private long elapsed = 0;
+
+        @Override
+        public void run() {
+            sampleThroughput();
+            elapsed += MIN_INTERVAL_MS;
+            if (elapsed >= intervalMs) {
+                elapsed = 0;
+                sendReport();
+            }
+        }
+    }
+
+    public TelemetryReporter(Context c, AppClassifier appClassifier, UidTrafficSampler uidTrafficSampler) {
+        context = c;
+        this.appClassifier = appClassifier;
+        this.uidTrafficSampler = uidTrafficSampler;
+    }
+
+    /**
+     * start or restart pushing reports
+     *
+     * @param requestedMs report interval asked by the controller
+     * @return the interval actually used
+     */
+    public synchronized long subscribe(long requestedMs) {
+        unsubscribe();
+
+        // whole seconds only, since throughput is sampled every second
+        intervalMs = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, requestedMs));
+        intervalMs = intervalMs / MIN_INTERVAL_MS * MIN_INTERVAL_MS;
+
+        seq = 0;
+        sampleNum = 0;
+        lastBytes = -1;
+        reporting = TaskExecutors.getInstance().scheduleWithFixedDelay(new SamplingTask(),
+                MIN_INTERVAL_MS, MIN_INTERVAL_MS);
+        Log.i(LOG_TAG, "telemetry subscribed, interval " + intervalMs + "ms");
+        return intervalMs;
+    }
+
+    public synchronized void unsubscribe() {
+        if (reporting != null) {
+            TaskExecutors.getInstance().cancel(reporting);
+            reporting = null;
+            Log.i(LOG_TAG, "telemetry unsubscribed");
+        }
+    }
+
+    public void setMotionState(String state) {
+        motionState = state;
+    }
+
+    private void sampleThroughput() {
+        long now = SystemClock.elapsedRealtime();
+        long bytes = TrafficStats.getTotalRxBytes() + TrafficStats.getTotalTxBytes();
+        if (lastBytes >= 0 && now > lastSampleTime && sampleNum < MAX_BATCH) {
+            samples[sampleNum++] = Math.max(0, bytes - lastBytes) * 1000 / (now - lastSampleTime) / 1024;
+        }
+        lastBytes = bytes;
+        lastSampleTime = now;
+    }
+
+    private void sendReport() {
+        boolean isFull = seq % KEYFRAME_REPORTS == 0;
+        NetworkStateTracker.State network = NetworkStateTracker.getInstance(context).getState();
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("s|telemetry|");
+        sb.append(network.mac);
+        sb.append("|" + seq + (isFull ? "|full" : "|delta"));
+
+        // throughput, first sample relative to the last one sent
+        if (sampleNum > 0) {
+            long prev = isFull ? 0 : lastThroughput;
+            sb.append("|tp=");
+            for (int i = 0; i < sampleNum; i++) {
+                if (i > 0) {
+                    sb.append("&");
+                }
+                sb.append(samples[i] - prev);
+                prev = samples[i];
+            }
+            lastThroughput = prev;
+            sampleNum = 0;
+        }
+
+        String bssid = network.bssid;
+        String rssi = bssid == null ? "none" : Integer.toString(network.rssi);
+        if (isFull || isRssiChanged(rssi)) {
+            sb.append("|rssi=" + rssi);
+            lastRssi = rssi;
+        }
+        if (isFull || !String.valueOf(bssid).equals(lastBssid)) {
+            sb.append("|bssid=" + bssid);
+            lastBssid = String.valueOf(bssid);
+        }
+
+        String motion = motionState;
+        if (isFull || !motion.equals(lastMotion)) {
+            sb.append("|motion=" + motion);
+            lastMotion = motion;
+        }
+
+        String app = appClassifier.classify();
+        UidTrafficSampler.Consumer[] consumers = uidTrafficSampler.getTopConsumers();
+        if (consumers.length > 0) {
+            app += "&" + uidTrafficSampler.getPackageName(consumers[0].uid);
+        }
+        if (isFull || !app.equals(lastApp)) {
+            sb.append("|app=" + app);
+            lastApp = app;
+        }
+
+        seq++;
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(context);
+            new UDPSendingTask().execute(sb.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending telemetry: can not using current IP address");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    private boolean isRssiChanged(String rssi) {
+        if (lastRssi == null || rssi.equals("none") || lastRssi.equals("none")) {
+            return !rssi.equals(lastRssi);
+        }
+        return Math.abs(Integer.parseInt(rssi) - Integer.parseInt(lastRssi)) >= RSSI_STEP;
+    }
+}
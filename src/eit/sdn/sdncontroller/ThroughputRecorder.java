@@ -0,0 +1,194 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Record the bytes of a download per fixed time slice, so throughput over
+ * time can be looked at, e.g. around a handover.
+ *
+ * Recording only adds to a slot of a primitive array, no objects are
+ * created. Time to first byte and stall periods (slices without any bytes
+ * after the first byte) are derived from the slices when asked for.
+ *
+ * A recorder has one writer: calls to onBytes() must come from one thread
+ * or be synchronized by the caller.
+ *
+ */
+public class ThroughputRecorder {
+
+    private final long sliceNanos;
+    private final int sliceMs;
+    private final long[] slices;
+    private long startNanos = 0;
+    private long firstByteNanos = -1;
+    private long lastNanos = 0;
+    private long totalBytes = 0;
+    private long droppedBytes = 0; // bytes after the last slice
+
+    // defaults
+    public static final int DEFAULT_SLICE_MS = 100;
+    public static final int DEFAULT_MAX_SLICES = 6000; // 10 minutes of 100ms
+    private int STALL_SLICES = 5; // at least 500ms without data
+
+    /**
+     * stall period of a download
+     */
+    public static class Stall {
+        public final long startMs; // from the start of the recording
+        public final long durationMs;
+
+        Stall(long startMs, long durationMs) {
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+        }
+    }
+
+    public ThroughputRecorder() {
+        this(DEFAULT_SLICE_MS, DEFAULT_MAX_SLICES);
+    }
+
+    /**
+     * @param sliceMs length of one slice
+     * @param maxSlices number of slices kept, later bytes only count in the total
+     */
+    public ThroughputRecorder(int sliceMs, int maxSlices) {
+        this.sliceMs = sliceMs;
+        this.sliceNanos = sliceMs * 1000000L;
+        this.slices = new long[maxSlices];
+    }
+
+    /**
+     * start the recording, e.g. right before connecting
+     */
+    public void start() {
+        startNanos = System.nanoTime();
+        lastNanos = startNanos;
+    }
+
+    public void onBytes(long bytes) {
+        long now = System.nanoTime();
+        if (firstByteNanos < 0) {
+            firstByteNanos = now;
+        }
+        lastNanos = now;
+        totalBytes += bytes;
+
+        long index = (now - startNanos) / sliceNanos;
+        if (index < slices.length) {
+            slices[(int)index] += bytes;
+        } else {
+            droppedBytes += bytes;
+        }
+    }
+
+    public int getSliceMs() {
+        return sliceMs;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /** Returns time to first byte in ms, or -1 if nothing was received */
+    public long getTtfbMs() {
+        return firstByteNanos < 0 ? -1 : (firstByteNanos - startNanos) / 1000000;
+    }
+
+    /** Returns the time from start to the last received byte in ms */
+    public long getDurationMs() {
+        return (lastNanos - startNanos) / 1000000;
+    }
+
+    /** Returns the number of slices up to the last received byte */
+    public int getSliceCount() {
+        return (int)Math.min(slices.length, (lastNanos - startNanos) / sliceNanos + 1);
+    }
+
+    /** Returns the throughput of one slice in bytes per second */
+    public long getRate(int slice) {
+        return slices[slice] * 1000 / sliceMs;
+    }
+
+    /** Returns the average throughput after the first byte in bytes per second */
+    public long getAverageRate() {
+        long ms = firstByteNanos < 0 ? 0 : (lastNanos - firstByteNanos) / 1000000;
+        return ms <= 0 ? 0 : totalBytes * 1000 / ms;
+    }
+
+    /** Returns the periods of at least STALL_SLICES empty slices after the first byte */
+    public List<Stall> getStalls() {
+        List<Stall> stalls = new ArrayList<Stall>();
+        if (firstByteNanos < 0) {
+            return stalls;
+        }
+
+        int count = getSliceCount();
+        int first = (int)((firstByteNanos - startNanos) / sliceNanos);
+        int emptyStart = -1;
+        for (int i = first; i <= count; i++) {
+            boolean isEmpty = i < count && slices[i] == 0;
+            if (isEmpty && emptyStart < 0) {
+                emptyStart = i;
+            } else if (!isEmpty && emptyStart >= 0) {
+                if (i - emptyStart >= STALL_SLICES) {
+                    stalls.add(new Stall((long)emptyStart * sliceMs, (long)(i - emptyStart) * sliceMs));
+                }
+                emptyStart = -1;
+            }
+        }
+        return stalls;
+    }
+
+    /** Returns the summary "ttfb_ms&avg_Bps&stall_num&stall_ms" */
+    public String toSummary() {
+        long stallMs = 0;
+        List<Stall> stalls = getStalls();
+        for (Stall s: stalls) {
+            stallMs += s.durationMs;
+        }
+        return getTtfbMs() + "&" + getAverageRate() + "&" + stalls.size() + "&" + stallMs;
+    }
+
+    /**
+     * Returns the timeline for the download log: one header line with the
+     * summary and the stalls, then "offset_ms bytes_per_s" per slice
+     */
+    public String toTimeline() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("ttfb=" + getTtfbMs() + "ms avg=" + getAverageRate() + "B/s slice=" + sliceMs + "ms");
+        sb.append(" stalls=");
+        List<Stall> stalls = getStalls();
+        for (int i = 0; i < stalls.size(); i++) {
+            if (i > 0) {
+                sb.append("&");
+            }
+            sb.append(stalls.get(i).startMs + "+" + stalls.get(i).durationMs);
+        }
+        if (droppedBytes > 0) {
+            sb.append(" untracked=" + droppedBytes);
+        }
+
+        int count = getSliceCount();
+        for (int i = 0; i < count; i++) {
+            sb.append("\n").append((long)i * sliceMs).append(" ").append(getRate(i));
+        }
+        return sb.toString();
+    }
+}
@@ -16,50 +16,129 @@
 
 package eit.sdn.sdncontroller;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.InetAddress;
+import java.util.concurrent.ScheduledFuture;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.net.TrafficStats;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
- * only used for experiments
+ * Sample the traffic of this device every second into a ring buffer of
+ * total, wifi and mobile byte rates.
+ *
+ * The latest rates can be queried by the agent with a "traffic" message.
+ * If a push threshold is set, a traffic report is also sent to the agent
+ * whenever the total rate crosses it.
+ *
  * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
  *
  */
 public class TrafficMonitoringService extends Service {
-    private Timer monitoringTimer = new Timer();
+    private ScheduledFuture<?> monitoring = null;
     private String logTag = SDNCommonUtil.LOG_TAG;
-    // private Context context;
+    private Context context;
+
+    // shared with UDPListeningService, null when the service is not running
+    private static volatile TrafficRateBuffer rateBuffer = null;
+    private static volatile boolean isAboveThreshold = false;
+
+    private MetricsRegistry.Gauge totalRate = MetricsRegistry.getInstance().gauge("traffic.total.bps");
+    private MetricsRegistry.Gauge wifiRate = MetricsRegistry.getInstance().gauge("traffic.wifi.bps");
+    private MetricsRegistry.Gauge mobileRate = MetricsRegistry.getInstance().gauge("traffic.mobile.bps");
+
+    // push threshold in bytes per second, 0 means never push
+    private long pushThreshold = 0;
+
+    // defaults
+    private int BUFFER_SECONDS = 300;
+    private int PUSH_WINDOW_SECONDS = 3;
+    private double PUSH_HYSTERESIS = 0.8;
+    private int AGENT_PORT = 6777;
+    private String PREF_PUSH_THRESHOLD = "pref_traffic_push_threshold";
+    private String DEFAULT_PUSH_THRESHOLD = "0"; // KB/s
+    // only a busy link says something about the throughput of its ap
+    private long MIN_MODEL_RATE = 128 * 1024;
+    private double MODEL_WEIGHT = 0.1;
 
-    private class MonitoringTask extends TimerTask {
+    private class MonitoringTask implements Runnable {
         private boolean isFirstTimeRunning = true;
-        private long startRxBytes;
-        private long startTxBytes;
+        private long startTime;
+        private long startBytes;
+        private long startMobileBytes;
+        private NetworkStateTracker.State startNetwork;
 
         @Override
         public void run() {
+            long now = SystemClock.elapsedRealtime();
+            long bytes = TrafficStats.getTotalRxBytes() + TrafficStats.getTotalTxBytes();
+            long mobileBytes = Math.max(0, TrafficStats.getMobileRxBytes())
+                                + Math.max(0, TrafficStats.getMobileTxBytes());
+
+            TrafficRateBuffer buffer = rateBuffer;
             if (isFirstTimeRunning) {
-                startRxBytes = TrafficStats.getTotalRxBytes();
-                startTxBytes = TrafficStats.getTotalTxBytes();
                 isFirstTimeRunning = false;
-            } else {
-                long endRxBytes = TrafficStats.getTotalRxBytes();
-                long endTxBytes = TrafficStats.getTotalTxBytes();
-                long rxBytes = endRxBytes - startRxBytes;
-                long txBytes = endTxBytes - startTxBytes;
-
-                startRxBytes = endRxBytes;
-                startTxBytes = endTxBytes;
-                Log.d(logTag, "mobile recieve rx bytes: " + rxBytes);
-                Log.d(logTag, "mobile recieve tx bytes: " + txBytes);
+            } else if (buffer != null && now > startTime) {
+                long interval = now - startTime;
+                long total = Math.max(0, bytes - startBytes) * 1000 / interval;
+                long mobile = Math.max(0, mobileBytes - startMobileBytes) * 1000 / interval;
+                // everything not on the mobile interfaces is counted as wifi
+                long wifi = Math.max(0, total - mobile);
+                buffer.add(total, wifi, mobile);
+                totalRate.set(total);
+                wifiRate.set(wifi);
+                mobileRate.set(mobile);
+                checkThreshold(buffer);
+                if (wifi >= MIN_MODEL_RATE) {
+                    NetworkStateTracker.getInstance(context).observeTraffic(startNetwork, wifi, interval,
+                                                                             MODEL_WEIGHT);
+                }
             }
+
+            startNetwork = NetworkStateTracker.getInstance(context).getState();
+            startTime = now;
+            startBytes = bytes;
+            startMobileBytes = mobileBytes;
         }
    }
 
+    /**
+     * Returns the rate buffer of the running service, or null if traffic
+     * monitoring is not started
+     */
+    public static TrafficRateBuffer getRateBuffer() {
+        return rateBuffer;
+    }
+
+    /**
+     * Returns the traffic reply sent to the agent:
+     * s|traffic|mac|window_s|high_or_low|total&avg&peak|wifi&avg&peak|mobile&avg&peak
+     * or s|traffic|mac|0|off if the monitoring is not running
+     *
+     * @param c context
+     * @param seconds window length
+     */
+    public static String buildReply(Context c, int seconds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("s|traffic|");
+        sb.append(NetworkStateTracker.getInstance(c).getState().mac);
+
+        TrafficRateBuffer buffer = rateBuffer;
+        if (buffer == null) {
+            sb.append("|0|off");
+        } else {
+            sb.append("|" + seconds + (isAboveThreshold ? "|high|" : "|low|"));
+            sb.append(buffer.toSummary(seconds));
+        }
+        return sb.toString();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         // TODO Auto-generated method stub
@@ -69,16 +148,52 @@ public class TrafficMonitoringService extends Service {
     public void onCreate() {
         super.onCreate();
 
-        // context = this;
+        context = this;
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        pushThreshold = Long.parseLong(prefs.getString(PREF_PUSH_THRESHOLD, DEFAULT_PUSH_THRESHOLD)) * 1024;
+
+        isAboveThreshold = false;
+        rateBuffer = new TrafficRateBuffer(BUFFER_SECONDS);
         Log.d(logTag, "traffic monitoring service started");
-        monitoringTimer.schedule(new MonitoringTask(), 0, 1000);
+        TaskExecutors.getInstance().acquire("TrafficMonitoringService");
+        monitoring = TaskExecutors.getInstance().scheduleWithFixedDelay(new MonitoringTask(), 0, 1000);
     }
 
     public void onDestroy() {
-        monitoringTimer.cancel();
-        monitoringTimer.purge();
+        TaskExecutors.getInstance().cancel(monitoring);
+        monitoring = null;
+        TaskExecutors.getInstance().release("TrafficMonitoringService");
+        rateBuffer = null;
         Log.d(logTag, "traffic monitoring service stopped");
         super.onDestroy();
     }
 
+    /* push a report to the agent when the total rate crosses the threshold */
+    private void checkThreshold(TrafficRateBuffer buffer) {
+        if (pushThreshold <= 0) {
+            return;
+        }
+
+        long rate = buffer.getAverage(TrafficRateBuffer.TOTAL, PUSH_WINDOW_SECONDS);
+        if (!isAboveThreshold && rate > pushThreshold) {
+            isAboveThreshold = true;
+        } else if (isAboveThreshold && rate < pushThreshold * PUSH_HYSTERESIS) {
+            isAboveThreshold = false;
+        } else {
+            return;
+        }
+
+        String message = buildReply(context, PUSH_WINDOW_SECONDS);
+        Log.d(logTag, message);
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(context);
+            new UDPSendingTask().execute(message, ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(logTag, "stop pushing traffic report: can not using current IP address");
+        } catch (Exception e) {
+            Log.e(logTag, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
 }
@@ -0,0 +1,105 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+/**
+ * Fixed-size ring buffer of per-second byte rates (rx + tx) for all
+ * interfaces, wifi and mobile. Nothing is allocated after construction.
+ *
+ */
+public class TrafficRateBuffer {
+
+    public static final int TOTAL = 0;
+    public static final int WIFI = 1;
+    public static final int MOBILE = 2;
+
+    private final long[][] rates;
+    private final int capacity;
+    private int next = 0;  // slot for the next sample
+    private int size = 0;
+
+    /**
+     * @param capacity number of samples kept
+     */
+    public TrafficRateBuffer(int capacity) {
+        this.capacity = capacity;
+        rates = new long[3][capacity];
+    }
+
+    /**
+     * add the rates of one second, all in bytes per second
+     */
+    public synchronized void add(long total, long wifi, long mobile) {
+        rates[TOTAL][next] = total;
+        rates[WIFI][next] = wifi;
+        rates[MOBILE][next] = mobile;
+        next = (next + 1) % capacity;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the average rate of the latest samples
+     *
+     * @param series TOTAL, WIFI or MOBILE
+     * @param seconds window length, limited to the number of samples kept
+     */
+    public synchronized long getAverage(int series, int seconds) {
+        int n = Math.min(seconds, size);
+        if (n <= 0) {
+            return 0;
+        }
+
+        long sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += rates[series][(next - i + capacity) % capacity];
+        }
+        return sum / n;
+    }
+
+    /**
+     * Returns the peak rate of the latest samples
+     *
+     * @param series TOTAL, WIFI or MOBILE
+     * @param seconds window length, limited to the number of samples kept
+     */
+    public synchronized long getPeak(int series, int seconds) {
+        int n = Math.min(seconds, size);
+        long peak = 0;
+        for (int i = 1; i <= n; i++) {
+            peak = Math.max(peak, rates[series][(next - i + capacity) % capacity]);
+        }
+        return peak;
+    }
+
+    /**
+     * Returns "total&avg&peak|wifi&avg&peak|mobile&avg&peak" of the latest
+     * samples, used in the replies sent to the agent
+     *
+     * @param seconds window length
+     */
+    public synchronized String toSummary(int seconds) {
+        return "total&" + getAverage(TOTAL, seconds) + "&" + getPeak(TOTAL, seconds)
+                + "|wifi&" + getAverage(WIFI, seconds) + "&" + getPeak(WIFI, seconds)
+                + "|mobile&" + getAverage(MOBILE, seconds) + "&" + getPeak(MOBILE, seconds);
+    }
+}
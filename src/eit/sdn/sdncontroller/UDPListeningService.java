@@ -17,15 +17,22 @@
 package eit.sdn.sdncontroller;
 
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
-import java.util.LinkedList;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
 
 import android.annotation.SuppressLint;
-import android.app.ActivityManager;
 import android.app.IntentService;
 import android.content.BroadcastReceiver;
 import android.content.Context;
@@ -43,11 +50,19 @@ import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import eit.sdn.sdncontroller.core.AgentMessage;
+import eit.sdn.sdncontroller.core.AgentReply;
+import eit.sdn.sdncontroller.core.ApScorer;
+import eit.sdn.sdncontroller.core.MotionWindow;
+import eit.sdn.sdncontroller.core.ThroughputModel;
+import eit.sdn.sdncontroller.core.Tracer;
+
 /**
  * This class is used for mobile deveice to listen to the UDP messages from
  * SDN AP agent, and react to specific management message defined by ourselves
@@ -59,10 +74,49 @@ import android.widget.Toast;
 public class UDPListeningService extends IntentService implements SensorEventListener {
 
     private boolean isEnabled = true;
-    private DatagramSocket socket = null;
+    private volatile DatagramSocket socket = null;
     private int preNetId;
     private ConnectivityChangeReceiver connChangeReceiver; // used for switch detection
     private WifiScanReceiver wifiScanReceiver; // used for scan wifi ap
+    private PreparedCandidate preparedCandidate = null; // pre-staged switch target
+    private AppClassifier appClassifier; // used for app replies
+    private UidTrafficSampler uidTrafficSampler; // top traffic consumers
+    private TelemetryReporter telemetryReporter; // pushed reports
+    private volatile DownloadBenchmark benchmark = null; // running benchmark
+    private volatile ListenerConfig listenerConfig;
+    private NetworkStateTracker networkState; // mac, gateway and rssi
+    private int failedPort = -1; // last port which could not be bound
+
+    // applies changed settings while the service keeps running
+    private ListenerConfig.Listener configListener = new ListenerConfig.Listener() {
+        @Override
+        public void onConfigChanged(ListenerConfig old, ListenerConfig config) {
+            listenerConfig = config;
+            UidTrafficSampler sampler = uidTrafficSampler;
+            if (sampler != null && old.uidSamplePeriodMs != config.uidSamplePeriodMs) {
+                sampler.setPeriod(config.uidSamplePeriodMs);
+            }
+            if (old.isMotionDetection && !config.isMotionDetection && sensorManager != null) {
+                sensorManager.unregisterListener(UDPListeningService.this);
+            }
+            if (old.udpPort != config.udpPort) {
+                wakeUpListener();
+            }
+        }
+    };
+
+    // deletes the file of a download job only used for generating load
+    private DownloadJob.Listener discardingJobListener = new DownloadJob.Listener() {
+        @Override
+        public void onProgress(DownloadJob job) {
+        }
+
+        @Override
+        public void onFinished(DownloadJob job) {
+            new File(job.getPath()).delete();
+            new File(job.getPath() + ".checkpoint").delete();
+        }
+    };
 
     
     // for testing
@@ -70,35 +124,73 @@ public class UDPListeningService extends IntentService implements SensorEventLis
     private double appDelay;
     private double scanDelay;
     private int scanAPNum;
+    private HandoverStats handoverStats = new HandoverStats();
+
+    // metrics
+    private MetricsRegistry metrics = MetricsRegistry.getInstance();
+    private MetricsRegistry.Counter packetsReceived = metrics.counter("udp.packets.received");
+    private MetricsRegistry.Counter packetsParsed = metrics.counter("udp.packets.parsed");
+    private MetricsRegistry.Counter packetsDropped = metrics.counter("udp.packets.dropped");
+    private LatencyHistogram handleTime = metrics.histogram("udp.handle.ms");
+    private MetricsRegistry.Counter scansStarted = metrics.counter("scan.started");
+    private MetricsRegistry.Counter scansCompleted = metrics.counter("scan.completed");
+    private MetricsRegistry.Counter handoversStarted = metrics.counter("handover.started");
+    private MetricsRegistry.Counter handoversCompleted = metrics.counter("handover.completed");
+    private MetricsRegistry.Counter handoversFailed = metrics.counter("handover.failed");
 
     // acc sensor
-    private boolean enableMotionDetection = false;
+    private Sensor sensor;
     private int sensorStatCount = 0;
     private SensorManager sensorManager;
-    private List<Float> valueX = new LinkedList<Float>();
-    private List<Float> valueY = new LinkedList<Float>();
-    private List<Float> valueZ = new LinkedList<Float>();
+    private MotionWindow motionWindow = new MotionWindow();
     private boolean motionDetected = false;
 
     // some defaults
     private String LOG_TAG = SDNCommonUtil.LOG_TAG;
     private String OUT_FILE = "result.txt";
     private int MAX_BUF_LEN = 1024;
-    private String UDP_SERVER_PORT_KEY = "recv_udp_port";
-    private String UDP_SERVER_PORT_DEFAULT = "7755";
-    private int UDP_SERVER_PORT = 7755;
+    private int DRAIN_TIMEOUT_MS = 100;
     private int AGENT_PORT = 6777;
-    private String TOKEN = "\\|";
-    private long DELAY_TIME_MS = 12000;
     private int DELAY_TIMES = 2;
-    private String PREF_MOTION_DETECTION = "pref_motion_detection";
+    private int TOP_CONSUMER_NUM = 3;
+    private int TRAFFIC_WINDOW_SECONDS = 10;
+    private long METRICS_DUMP_INTERVAL_MS = 60000;
+    private long PREPARE_TTL_MS = 60000;
+    private String PREF_DOWNLOADING_URL_KEY = "pref_downloading_url";
+    private String DOWNLOADING_URL = "http://www.cs.helsinki.fi/group/eit-sdn/testing/tiny.tmp";
+    private String BENCHMARK_FILE = "download-benchmark.txt";
+    private String TRACE_FILE = "trace.txt";
+    private int DEFAULT_TRACE_SEND = 50;
+    private int MAX_TRACE_SEND = 500;
+    private int MAX_REPLY_LEN = 1200; // fits the receiving buffer of the agent
+    private long DEFAULT_BUNDLE_DEADLINE_MS = 5000;
+    private long MAX_BUNDLE_DEADLINE_MS = 15000;
+    private long BUNDLE_POLL_MS = 50;
     
     // Message types
     private final String MSG_MOTION = "motion";
     private final String MSG_SCAN = "scan";
     private final String MSG_SWITCH = "switch";
+    private final String MSG_PREPARE = "prepare";
     private final String MSG_APP = "app";
     private final String MSG_WIFI_OFF = "wifioff";
+    private final String MSG_STATS = "stats";
+    private final String MSG_TRAFFIC = "traffic";
+    private final String MSG_SUBSCRIBE = "subscribe";
+    private final String MSG_UNSUBSCRIBE = "unsubscribe";
+    private final String MSG_METRICS = "metrics";
+    private final String MSG_DOWNLOAD = "download";
+    private final String MSG_BENCHMARK = "benchmark";
+    private final String MSG_TRACE = "trace";
+    private final String MSG_SCORE = "score";
+    private final String MSG_PREDICT = "predict";
+    private final String MSG_BUNDLE = "bundle";
+
+    // trace events of the hot paths
+    private static final int TRACE_PACKET = Tracer.event("packet.received", "$type", "bytes");
+    private static final int TRACE_HANDLED = Tracer.event("packet.handled", "$type", "ms");
+    private static final int TRACE_SCAN_REPLY = Tracer.event("scan.reply", "aps", "bytes");
+    private static final int TRACE_APP_REPLY = Tracer.event("app.reply", "bytes", null);
 
 
     // broadcast receiver for network connection info
@@ -125,6 +217,12 @@ public class UDPListeningService extends IntentService implements SensorEventLis
                                             + ", " + Integer.toString(scanAPNum);
                             SDNCommonUtil.writeToExternalFile(line, LOG_TAG, OUT_FILE);
 
+                            long connectMs = endTimestamp - startTimestamp;
+                            long handoverMs = Math.round((appDelay + scanDelay) * 1000) + connectMs;
+                            handoverStats.recordHandover(wInfo.getBSSID(), connectMs, handoverMs);
+                            handoversCompleted.inc();
+                            ScanCache.getInstance().getScorer().recordOutcome(wInfo.getBSSID(), true);
+
                             CharSequence text = "Connected to WiFi network " + ssid;
                             int duration = Toast.LENGTH_LONG;
 
@@ -143,14 +241,14 @@ public class UDPListeningService extends IntentService implements SensorEventLis
                 if (extras != null) {
                     NetworkInfo nInfo = (NetworkInfo)extras.get("networkInfo");
                     if (nInfo.isConnected()) {
+                        // the gateway may have changed, do not wait for the tracker
+                        networkState.refresh();
                         StringBuilder sb = new StringBuilder();
                         sb.append("a|time|");
-                        WifiManager wifiManager = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
                         Log.d(LOG_TAG, "reconnection established");
 
                         try {
-                            int dst = wifiManager.getDhcpInfo().gateway;
-                            InetAddress ipAddr = InetAddress.getByName(SDNCommonUtil.littleEndianIntToIpAddress(dst));
+                            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(context);
                             Log.d(LOG_TAG, "current gateway: " + ipAddr.getHostAddress());
                             new UDPSendingTask().execute(sb.toString(), ipAddr, AGENT_PORT);
                         } catch (IllegalArgumentException e) {
@@ -166,21 +264,36 @@ public class UDPListeningService extends IntentService implements SensorEventLis
         }
     }
 
+    /**
+     * a handover target whose wifi config has already been created and
+     * validated by a "prepare" message
+     *
+     */
+    private static class PreparedCandidate {
+        public String bssid;
+        public WifiConfiguration config;
+        public long preparedTime;
+    }
+
     /**
      * receive wifi scan result broadcast and then trigger our own functions
      *
      */
     private class WifiScanReceiver extends BroadcastReceiver {
         public int scanRemainingNum = 0;
+        public int topK = 0; // 0 sends all aps unranked
         public StringBuilder scanResult;
         public boolean isStatic = false;
         
         public void onReceive(Context c, Intent intent) {
             scanResult = new StringBuilder();
+            // every scan feeds the cache, also those nobody asked us for
+            WifiManager wifiManager = (WifiManager)c.getSystemService(Context.WIFI_SERVICE);
+            ScanCache.Snapshot snapshot = ScanCache.getInstance().update(wifiManager.getScanResults());
             
             if (scanRemainingNum > 0) {
                 
-                if (scanRemainingNum == 3 && enableMotionDetection) {
+                if (scanRemainingNum == 3 && listenerConfig.isMotionDetection) {
                     for(int i = 0; i < 4 && !motionDetected; i++) {
                         SystemClock.sleep(500);
                         Log.d(LOG_TAG, "motion detection is not finished");
@@ -193,49 +306,20 @@ public class UDPListeningService extends IntentService implements SensorEventLis
                     } else {
                         Log.i(LOG_TAG, "moving device, three-turn scanning is performed!");
                     }
-                } else if (!enableMotionDetection) {
+                } else if (!listenerConfig.isMotionDetection) {
                     isStatic = true;
                 }
                 
-                scanResult.append("s|scan|");
-                WifiManager wifiManager = (WifiManager)c.getSystemService(Context.WIFI_SERVICE);
-                String mac = wifiManager.getConnectionInfo().getMacAddress();
-                scanResult.append(mac);
-                if (isStatic) {
-                    scanResult.append("|static");
-                } else {
-                    scanResult.append("|other");
-                }
-                
-                List<ScanResult> scanResultList = wifiManager.getScanResults();
-                scanAPNum = 0;
-                for (ScanResult r: scanResultList) {
-                    scanAPNum++;
-                    scanResult.append("|" + r.SSID + "&" + r.BSSID + "&" + r.level);
-                }
-                
-                Log.d(LOG_TAG, "scan result message: " + scanResult.toString());
-
-                // send reply
-                try {
-                    int dst = wifiManager.getDhcpInfo().gateway;
-                    InetAddress ipAddr = InetAddress.getByName(SDNCommonUtil.littleEndianIntToIpAddress(dst));
-                    new UDPSendingTask().execute(scanResult.toString(), ipAddr, AGENT_PORT);
-                    Log.i(LOG_TAG, "sent scan reply to agent " + ipAddr.getHostAddress());
-                } catch (IllegalArgumentException e) {
-                    Log.e(LOG_TAG, "stop scan replying: can not using current IP address");
-                    e.printStackTrace();
-                } catch (Exception e) {
-                    Log.e(LOG_TAG, "unknown udp sending error");
-                    e.printStackTrace();
-                }
+                scanResult.append(sendScanReply(snapshot.results, isStatic, topK));
                 
                 if (--scanRemainingNum > 0) {
                     SystemClock.sleep(500);
                     wifiManager.startScan();
+                    scansStarted.inc();
                 } else {
                     long endT = System.currentTimeMillis();
                     scanDelay = (endT - startTimestamp) / 1000.0;
+                    handoverStats.recordScan(endT - startTimestamp);
                     Log.d(LOG_TAG, "scan total delay: " + scanDelay + "s");
                 }
                 
@@ -244,6 +328,127 @@ public class UDPListeningService extends IntentService implements SensorEventLis
         }
     }
 
+    /**
+     * send the scan results to the agent as
+     * "s|scan|mac|static_or_other|ssid&bssid&level|...", or if topK > 0
+     * the best topK aps of ApScorer as
+     * "s|scan|mac|static_or_other|ssid&bssid&level&score&predicted_Bps|..."
+     *
+     * @param isStatic false if the device is moving
+     * @return the reply
+     */
+    private String sendScanReply(List<ScanResult> results, boolean isStatic, int topK) {
+        AgentReply reply = new AgentReply(MSG_SCAN, networkState.getState().mac);
+        reply.add(isStatic ? "static" : "other");
+
+        scanAPNum = results.size();
+        if (topK > 0) {
+            ThroughputModel model = ThroughputModel.getInstance();
+            List<ApScorer.Candidate> candidates = new ArrayList<ApScorer.Candidate>(results.size());
+            for (ScanResult r: results) {
+                long rate = model.predict(r.BSSID, r.level).rate;
+                candidates.add(new ApScorer.Candidate(r.SSID, r.BSSID, r.level, rate));
+            }
+            List<ApScorer.Candidate> ranked = ScanCache.getInstance().getScorer().rank(candidates,
+                    getConfiguredSsids(), !isStatic, SystemClock.elapsedRealtime(), topK);
+            for (ApScorer.Candidate c: ranked) {
+                reply.add(c.ssid + "&" + c.bssid + "&" + c.level + "&" + Math.round(c.score * 1000) / 1000.0
+                          + "&" + c.predictedRate);
+            }
+        } else {
+            for (ScanResult r: results) {
+                reply.add(r.SSID, r.BSSID, r.level);
+            }
+        }
+        String replyStr = reply.toString();
+
+        Tracer.record(TRACE_SCAN_REPLY, scanAPNum, replyStr.length());
+
+        // send reply
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(replyStr, ipAddr, AGENT_PORT);
+            scansCompleted.inc();
+            Log.i(LOG_TAG, "sent scan reply to agent " + ipAddr.getHostAddress());
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop scan replying: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+        return replyStr;
+    }
+
+    /* Returns k of "scan|max_age_ms|k", 0 if not given */
+    private int parseTopK(String[] fields) {
+        if (fields.length < 3 || fields[2].equals("")) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Integer.parseInt(fields[2]));
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "illegal scan candidate number: " + fields[2]);
+            return 0;
+        }
+    }
+
+    /* ssids of the configured networks, without quotes */
+    private Set<String> getConfiguredSsids() {
+        Set<String> ssids = new HashSet<String>();
+        WifiManager wifiManager = (WifiManager)this.getSystemService(Context.WIFI_SERVICE);
+        List<WifiConfiguration> configs = wifiManager.getConfiguredNetworks();
+        if (configs != null) {
+            for (WifiConfiguration c: configs) {
+                if (c.SSID != null) {
+                    ssids.add(c.SSID.replace("\"", ""));
+                }
+            }
+        }
+        return ssids;
+    }
+
+    /**
+     * answer "scan|max_age_ms[|k]" from ScanCache if the cached scan is fresh
+     * enough. A moving device, or one whose motion detection has not
+     * finished, always gets new scans, since it needs several of them.
+     *
+     * @return false if a new scan has to be started
+     */
+    private boolean replyFromScanCache(String[] fields) {
+        if (fields.length < 2 || fields[1].equals("")) {
+            return false;
+        }
+
+        long maxAgeMs;
+        try {
+            maxAgeMs = Long.parseLong(fields[1]);
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "illegal scan max age: " + fields[1]);
+            return false;
+        }
+
+        boolean isStatic = !listenerConfig.isMotionDetection;
+        if (listenerConfig.isMotionDetection) {
+            if (!motionDetected || !isStatic()) {
+                return false;
+            }
+            isStatic = true;
+        }
+
+        ScanCache.Snapshot snapshot = ScanCache.getInstance().getFresh(maxAgeMs);
+        if (snapshot == null) {
+            return false;
+        }
+
+        sendScanReply(snapshot.results, isStatic, parseTopK(fields));
+        long endT = System.currentTimeMillis();
+        scanDelay = (endT - startTimestamp) / 1000.0;
+        handoverStats.recordScan(endT - startTimestamp);
+        Log.i(LOG_TAG, "scan answered from cache, age " + snapshot.getAgeMs() + "ms");
+        return true;
+    }
+
     /**
      * A required constructor for this service
      *
@@ -252,6 +457,13 @@ public class UDPListeningService extends IntentService implements SensorEventLis
         super("UDPListeningService");
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        TaskExecutors.getInstance().acquire("UDPListeningService");
+        networkState = NetworkStateTracker.getInstance(this);
+    }
+
     /**
      * main logic function of this service
      *
@@ -259,7 +471,6 @@ public class UDPListeningService extends IntentService implements SensorEventLis
     @SuppressLint("DefaultLocale")
     @Override
     protected void onHandleIntent(Intent arg0) {
-        String message;
         byte[] recvBuf = new byte[MAX_BUF_LEN];
 
         isEnabled = true;
@@ -271,76 +482,42 @@ public class UDPListeningService extends IntentService implements SensorEventLis
         registerReceiver(wifiScanReceiver,
                 new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
         
-        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-        Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        appClassifier = new AppClassifier(this);
+        appClassifier.start();
 
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String portString = prefs.getString(UDP_SERVER_PORT_KEY, UDP_SERVER_PORT_DEFAULT);
-        int udpServerPort = Integer.parseInt(portString);
-        enableMotionDetection = prefs.getBoolean(PREF_MOTION_DETECTION, false);
+        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+        sensor = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+
+        listenerConfig = ListenerConfig.get(this);
+        ListenerConfig.addListener(configListener);
+        uidTrafficSampler = new UidTrafficSampler(this, listenerConfig.uidSamplePeriodMs, TOP_CONSUMER_NUM);
+        uidTrafficSampler.start();
+        telemetryReporter = new TelemetryReporter(this, appClassifier, uidTrafficSampler);
+        metrics.startDump(METRICS_DUMP_INTERVAL_MS);
         
-        // Log.i(LOG_TAG, "Motion Detection: " + enableMotionDetection);
-
-        if (udpServerPort < 1024 || udpServerPort > 65535) {
-            udpServerPort = UDP_SERVER_PORT;
-        }
+        // Log.i(LOG_TAG, "Motion Detection: " + listenerConfig.isMotionDetection);
 
         try {
-            socket = new DatagramSocket(udpServerPort);
-            Log.i("UDPListeningService", "UDP receiver started on port " + Integer.toString(udpServerPort));
+            DatagramSocket s = new DatagramSocket(listenerConfig.udpPort);
+            socket = s;
+            Log.i("UDPListeningService", "UDP receiver started on port " + Integer.toString(listenerConfig.udpPort));
 
-            while (isEnabled) {
+            while (isEnabled && (s = socket) != null) {
 
+                // blocks without timeout, a port change wakes it up by an
+                // empty packet, see wakeUpListener()
                 DatagramPacket packet = new DatagramPacket(recvBuf, recvBuf.length);
-                socket.receive(packet);
-
-                // get packet data with specific length from recvBuf
-                message = new String(packet.getData(), packet.getOffset(),
-                                    packet.getLength()).trim();
-                Log.d("UDPListeningService", "received packet: " + message);
-
-                String[] fields = message.split(TOKEN);
-                String msg_type = fields[0].toLowerCase();
-
-                if (msg_type.equals(MSG_SWITCH)) { // switch to another access point
-                    startTimestamp = System.currentTimeMillis();
-                    wifiSwitch(fields);
-
-                } else if (msg_type.equals(MSG_SCAN)) { // using for ap scanning
-                    startTimestamp = System.currentTimeMillis();
-                    WifiManager wifiManager = (WifiManager)this.getSystemService(Context.WIFI_SERVICE);
-                    if (enableMotionDetection) {
-                        wifiScanReceiver.scanRemainingNum = 3;
-                    } else {
-                        wifiScanReceiver.scanRemainingNum = 1;
-                    }
-                    
-                    wifiManager.startScan();
-                    Log.i(LOG_TAG, "starting wifi scanning...");
-                } else if (msg_type.equals(MSG_APP)) { // get running app info
-                    long startT = System.currentTimeMillis();
-                    Log.i(LOG_TAG, "collecting running app info...");
-                    getRunningAppInfo();
-                    long endT = System.currentTimeMillis();
-                    this.appDelay = (endT - startT) / 1000.0;
-                } else if (msg_type.equals(MSG_WIFI_OFF)) { // turn off wifi interface
-                    WifiManager wifiManager = (WifiManager) this.getSystemService(Context.WIFI_SERVICE);
-                    if(wifiManager.isWifiEnabled()){
-                      wifiManager.setWifiEnabled(false);
-                    }
-                    
-                    Log.i(LOG_TAG, "wifi is turned off");
-                } else if (msg_type.equals(MSG_MOTION) && enableMotionDetection) {
-                    valueX.clear();
-                    valueY.clear();
-                    valueZ.clear();
-                    sensorStatCount = 0;
-                    motionDetected = false;
-                    sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL);
+                s.receive(packet);
+                if (packet.getLength() > 0) {
+                    handlePacket(packet);
                 }
+                rebindIfChanged();
             }
 
-            socket.close();
+            s = socket;
+            if (s != null) {
+                s.close();
+            }
 
         // FIXME current thread termination may cause socket exception
         // now we just ignore it
@@ -353,20 +530,224 @@ public class UDPListeningService extends IntentService implements SensorEventLis
         }
     }
 
+    /**
+     * send an empty packet to the port the listener thread is blocked on,
+     * so it returns from receive() and calls rebindIfChanged(). Called on
+     * the main thread, the packet is sent by the UDP pool.
+     */
+    private void wakeUpListener() {
+        DatagramSocket s = socket;
+        if (s == null) {
+            return;
+        }
+        final int port = s.getLocalPort();
+        boolean isQueued = TaskExecutors.getInstance().execute(TaskExecutors.UDP, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    DatagramSocket sender = new DatagramSocket();
+                    sender.send(new DatagramPacket(new byte[0], 0, InetAddress.getByName("127.0.0.1"), port));
+                    sender.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "can not wake up udp listener on port " + port);
+                    e.printStackTrace();
+                }
+            }
+        });
+        if (!isQueued) {
+            Log.e(LOG_TAG, "can not wake up udp listener, the new port is used after the next packet");
+        }
+    }
+
+    /**
+     * bind the port of the current config if it changed. The new socket is
+     * bound first, so datagrams sent to the new port wait in its buffer
+     * while the ones already queued on the old port are handled.
+     */
+    private void rebindIfChanged() throws IOException {
+        DatagramSocket old = socket;
+        int port = listenerConfig.udpPort;
+        if (old == null || port == old.getLocalPort() || port == failedPort) {
+            return;
+        }
+
+        DatagramSocket s;
+        try {
+            s = new DatagramSocket(port);
+        } catch (SocketException e) {
+            Log.e(LOG_TAG, "can not bind udp port " + port + ", keep listening on " + old.getLocalPort());
+            failedPort = port;
+            return;
+        }
+        failedPort = -1;
+        socket = s;
+
+        // drain the old socket
+        old.setSoTimeout(DRAIN_TIMEOUT_MS);
+        byte[] buf = new byte[MAX_BUF_LEN];
+        int drained = 0;
+        try {
+            while (true) {
+                DatagramPacket packet = new DatagramPacket(buf, buf.length);
+                old.receive(packet);
+                if (packet.getLength() > 0) {
+                    handlePacket(packet);
+                    drained++;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // nothing left
+        } finally {
+            old.close();
+        }
+        Log.i(LOG_TAG, "UDP receiver moved to port " + port + ", " + drained + " packets drained");
+        if (!isEnabled) {
+            s.close(); // stopped while draining
+        } else {
+            rebindIfChanged(); // the port may have changed again while draining
+        }
+    }
+
+    /**
+     * handle one management packet
+     */
+    private void handlePacket(DatagramPacket packet) {
+        String message;
+
+        // get packet data with specific length from recvBuf
+        message = new String(packet.getData(), packet.getOffset(),
+                            packet.getLength()).trim();
+        packetsReceived.inc();
+        handleMessage(message, packet.getLength());
+    }
+
+    /**
+     * handle one management message, a packet or a sub-command of a bundle
+     *
+     * @param message
+     * @param length bytes of the packet
+     */
+    private void handleMessage(String message, int length) {
+        long handleStart = SystemClock.elapsedRealtime();
+
+        AgentMessage agentMessage = AgentMessage.parse(message);
+        String[] fields = agentMessage.getFields();
+        String msg_type = agentMessage.getType();
+        long traceType = Tracer.ascii(msg_type);
+        Tracer.record(TRACE_PACKET, traceType, length);
+        boolean isKnownType = true;
+
+        if (msg_type.equals(MSG_SWITCH)) { // switch to another access point
+            startTimestamp = System.currentTimeMillis();
+            wifiSwitch(fields);
+
+        } else if (msg_type.equals(MSG_PREPARE)) { // pre-stage a switch target
+            prepareSwitch(fields);
+
+        } else if (msg_type.equals(MSG_SCAN)) { // using for ap scanning
+            startTimestamp = System.currentTimeMillis();
+            if (!replyFromScanCache(fields)) {
+                WifiManager wifiManager = (WifiManager)this.getSystemService(Context.WIFI_SERVICE);
+                wifiScanReceiver.topK = parseTopK(fields);
+                if (listenerConfig.isMotionDetection) {
+                    wifiScanReceiver.scanRemainingNum = 3;
+                } else {
+                    wifiScanReceiver.scanRemainingNum = 1;
+                }
+
+                wifiManager.startScan();
+                scansStarted.inc();
+                Log.i(LOG_TAG, "starting wifi scanning...");
+            }
+        } else if (msg_type.equals(MSG_APP)) { // get running app info
+            long startT = System.currentTimeMillis();
+            Log.i(LOG_TAG, "collecting running app info...");
+            getRunningAppInfo();
+            long endT = System.currentTimeMillis();
+            this.appDelay = (endT - startT) / 1000.0;
+            handoverStats.recordApp(endT - startT);
+        } else if (msg_type.equals(MSG_WIFI_OFF)) { // turn off wifi interface
+            WifiManager wifiManager = (WifiManager) this.getSystemService(Context.WIFI_SERVICE);
+            if(wifiManager.isWifiEnabled()){
+              wifiManager.setWifiEnabled(false);
+            }
+            
+            Log.i(LOG_TAG, "wifi is turned off");
+        } else if (msg_type.equals(MSG_STATS)) { // latency statistics
+            sendStatsReply(fields);
+        } else if (msg_type.equals(MSG_TRAFFIC)) { // recent traffic rates
+            sendTrafficReply(fields);
+        } else if (msg_type.equals(MSG_SUBSCRIBE)) { // start pushing telemetry
+            subscribeTelemetry(fields);
+        } else if (msg_type.equals(MSG_UNSUBSCRIBE)) {
+            telemetryReporter.unsubscribe();
+        } else if (msg_type.equals(MSG_METRICS)) { // metrics snapshot
+            sendMetricsReply();
+        } else if (msg_type.equals(MSG_DOWNLOAD)) { // download jobs
+            controlDownloadJobs(fields);
+        } else if (msg_type.equals(MSG_BENCHMARK)) { // repeated downloads
+            startBenchmark(fields);
+        } else if (msg_type.equals(MSG_TRACE)) { // hot path trace
+            controlTrace(fields);
+        } else if (msg_type.equals(MSG_SCORE)) { // ap scoring weights
+            controlScoring(fields);
+        } else if (msg_type.equals(MSG_PREDICT)) { // expected throughput
+            sendPredictionReply(fields);
+        } else if (msg_type.equals(MSG_BUNDLE)) { // several commands, one reply
+            handleBundle(fields);
+        } else if (msg_type.equals(MSG_MOTION)) { // ignored if motion detection is off
+            if (listenerConfig.isMotionDetection) {
+                motionWindow.clear();
+                sensorStatCount = 0;
+                motionDetected = false;
+                sensorManager.registerListener(this, sensor, SensorManager.SENSOR_DELAY_NORMAL);
+            }
+        } else {
+            isKnownType = false;
+            Log.d(LOG_TAG, "unknown message type, drop it: " + msg_type);
+        }
+
+        if (isKnownType) {
+            packetsParsed.inc();
+        } else {
+            packetsDropped.inc();
+        }
+        long handleMs = SystemClock.elapsedRealtime() - handleStart;
+        handleTime.record(handleMs);
+        Tracer.record(TRACE_HANDLED, traceType, handleMs);
+    }
+
     public void stopListening() {
         isEnabled = false;
-        if (socket != null) {
-            socket.close();
-            socket = null;
+        DatagramSocket s = socket;
+        socket = null;
+        if (s != null) {
+            s.close();
         }
     }
 
     @Override
     public void onDestroy() {
         stopListening();
+        ListenerConfig.removeListener(configListener);
         sensorManager.unregisterListener(this);
         unregisterReceiver(connChangeReceiver);
         unregisterReceiver(wifiScanReceiver);
+        if (appClassifier != null) {
+            appClassifier.stop();
+        }
+        if (telemetryReporter != null) {
+            telemetryReporter.unsubscribe();
+        }
+        if (uidTrafficSampler != null) {
+            uidTrafficSampler.stop();
+        }
+        DownloadBenchmark b = benchmark;
+        if (b != null) {
+            b.cancel();
+        }
+        metrics.stopDump();
+        TaskExecutors.getInstance().release("UDPListeningService");
         Log.d("UDPListeningService", "UDP receiver successfully stopped.");
         super.onDestroy();
     }
@@ -376,6 +757,9 @@ public class UDPListeningService extends IntentService implements SensorEventLis
      * The management pkt should be like this:
      * switch|ssid|auth_alg|passwd|wep_options_to_be_added...
      *
+     * If the same bssid has been prepared before, the prepared config is
+     * enabled directly
+     *
      * TODO Now WEP configuration is still missing
      *
      * @param fields the splitted udp message
@@ -394,51 +778,16 @@ public class UDPListeningService extends IntentService implements SensorEventLis
                   && wifiInfo.getBSSID().toLowerCase().equals(bssid.toLowerCase())) {
                   Log.i("UDPListeningService", "same bssid to current one, ignore the request");
               } else {
-                  // find corresponding config
-                  List<WifiConfiguration> list = wifiManager.getConfiguredNetworks();
-                  for(WifiConfiguration i : list) {
-                      // Log.d("test", i.SSID);
-                      if(i.SSID != null && i.SSID.equals("\"" + fields[1] + "\"")) {
-//                          if(i.BSSID != null && i.BSSID.toLowerCase().equals(bssid.toLowerCase())) {
-//                              Log.d("UDPListeningService", "find existing config for bssid: " + bssid);
-//                          } else { // the same ssid with unmatched bssid
-//                              Log.d("UDPListeningService", "original bssid: " + i.BSSID);
-//                              Log.d("UDPListeningService", "bssid not match");
-//                              i.BSSID = bssid;
-//                          }
-
-                          connectWifiNetwork(wifiManager, i);
-                          return;
-                      }
-                  }
-
-                  // TODO this part of logic is not complete at all
-                  // not find existing config for the new bssid
-                  Log.d(LOG_TAG, "create new config for bssid: " + bssid);
-                  WifiConfiguration conf = new WifiConfiguration();
-                  conf.SSID = "\"" + ssid + "\"";
-                  conf.BSSID = bssid;
-                  if (fields[3].equals("open")) {
-                      conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-                  } else if (fields[3].equals("wep")) {
-                      // TODO add WEP condition
-                  } else if (fields[3].equals("wpa") && !fields[4].equals("")) {
-                      conf.preSharedKey = "\""+ fields[4] +"\"";
-                  } else {
-                      Log.w(LOG_TAG, "illegal mgt packet, ignore it");
+                  PreparedCandidate candidate = takePreparedCandidate(bssid);
+                  if (candidate != null) {
+                      Log.d(LOG_TAG, "use prepared config for bssid: " + bssid);
+                      connectWifiNetwork(wifiManager, candidate.config, bssid, true);
                       return;
                   }
 
-
-                  wifiManager.addNetwork(conf);
-                  Log.d(LOG_TAG, "created new config successfully");
-                  list = wifiManager.getConfiguredNetworks();
-                  for(WifiConfiguration i : list) {
-                      // Log.d("test", i.SSID);
-                      if(i.BSSID != null && i.BSSID.toLowerCase().equals(bssid.toLowerCase())) {
-                          connectWifiNetwork(wifiManager, i);
-                          break;
-                      }
+                  WifiConfiguration config = findOrCreateConfig(wifiManager, fields);
+                  if (config != null) {
+                      connectWifiNetwork(wifiManager, config, bssid, false);
                   }
               }
 
@@ -448,25 +797,170 @@ public class UDPListeningService extends IntentService implements SensorEventLis
     }
 
 
+    /**
+     * create and validate the config of a likely switch target in advance,
+     * so a following switch message only needs to enable it.
+     * The management pkt should be like this:
+     * prepare|ssid|bssid|auth_alg|passwd
+     *
+     * A reply "s|prepare|mac|bssid|ready" or "s|prepare|mac|bssid|failed"
+     * is sent back to the agent
+     *
+     * @param fields the splitted udp message
+     */
+    private void prepareSwitch(String[] fields) {
+        if (fields.length < 4 || fields[1].equals("") || fields[2].equals("")) {
+            Log.w(LOG_TAG, "illegal prepare packet, ignore it");
+            return;
+        }
+
+        String bssid = fields[2];
+        WifiManager wifiManager = (WifiManager)this.getSystemService(Context.WIFI_SERVICE);
+        WifiConfiguration config = findOrCreateConfig(wifiManager, fields);
+
+        String result = "failed";
+        if (config != null) {
+            PreparedCandidate candidate = new PreparedCandidate();
+            candidate.bssid = bssid;
+            candidate.config = config;
+            candidate.preparedTime = SystemClock.elapsedRealtime();
+            preparedCandidate = candidate;
+            result = "ready";
+            Log.i(LOG_TAG, "prepared switch target " + fields[1] + " - " + bssid);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("s|prepare|");
+        sb.append(networkState.getState().mac);
+        sb.append("|" + bssid + "|" + result);
+
+        // this also warms the cached agent address for the switch replies
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(sb.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending prepare reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * get the prepared candidate for a specific bssid, the candidate can only
+     * be used once and expires after PREPARE_TTL_MS
+     *
+     * @param bssid
+     * @return prepared candidate, or null if there is no valid one
+     */
+    private PreparedCandidate takePreparedCandidate(String bssid) {
+        PreparedCandidate candidate = preparedCandidate;
+        if (candidate == null || !candidate.bssid.equalsIgnoreCase(bssid)) {
+            return null;
+        }
+
+        preparedCandidate = null;
+        if (SystemClock.elapsedRealtime() - candidate.preparedTime > PREPARE_TTL_MS) {
+            Log.d(LOG_TAG, "prepared config for bssid " + bssid + " is expired");
+            return null;
+        }
+        return candidate;
+    }
+
+
+    /**
+     * find the existing wifi config for the ssid in the message, or create
+     * a new one according to the auth fields
+     *
+     * @param wifiManager
+     * @param fields the splitted udp message
+     * @return wifi config with a valid network id, or null if failed
+     */
+    private WifiConfiguration findOrCreateConfig(WifiManager wifiManager, String[] fields) {
+        String ssid = fields[1];
+        String bssid = fields[2];
+
+        // find corresponding config
+        List<WifiConfiguration> list = wifiManager.getConfiguredNetworks();
+        if (list != null) {
+            for(WifiConfiguration i : list) {
+                // Log.d("test", i.SSID);
+                if(i.SSID != null && i.SSID.equals("\"" + ssid + "\"")) {
+//                    if(i.BSSID != null && i.BSSID.toLowerCase().equals(bssid.toLowerCase())) {
+//                        Log.d("UDPListeningService", "find existing config for bssid: " + bssid);
+//                    } else { // the same ssid with unmatched bssid
+//                        Log.d("UDPListeningService", "original bssid: " + i.BSSID);
+//                        Log.d("UDPListeningService", "bssid not match");
+//                        i.BSSID = bssid;
+//                    }
+                    return i;
+                }
+            }
+        }
+
+        // TODO this part of logic is not complete at all
+        // not find existing config for the new bssid
+        if (fields.length < 4) {
+            Log.w(LOG_TAG, "no auth info for new bssid, ignore it");
+            return null;
+        }
+
+        Log.d(LOG_TAG, "create new config for bssid: " + bssid);
+        WifiConfiguration conf = new WifiConfiguration();
+        conf.SSID = "\"" + ssid + "\"";
+        conf.BSSID = bssid;
+        if (fields[3].equals("open")) {
+            conf.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+        } else if (fields[3].equals("wep")) {
+            // TODO add WEP condition
+        } else if (fields[3].equals("wpa") && fields.length > 4 && !fields[4].equals("")) {
+            conf.preSharedKey = "\""+ fields[4] +"\"";
+        } else {
+            Log.w(LOG_TAG, "illegal mgt packet, ignore it");
+            return null;
+        }
+
+        int netId = wifiManager.addNetwork(conf);
+        if (netId == -1) {
+            Log.w(LOG_TAG, "failed to add config for bssid: " + bssid);
+            return null;
+        }
+        conf.networkId = netId;
+        Log.d(LOG_TAG, "created new config successfully");
+        return conf;
+    }
+
+
     /**
      * connect to a specific wifi network
      *
      * @param wifiManager
      * @param config wifi config
+     * @param bssid target ap, a failure counts against it when scoring
+     * @param isPrepared whether config is a prepared one, in which case
+     *        enableNetwork is called directly without disconnecting first
      */
-    private void connectWifiNetwork(WifiManager wifiManager, WifiConfiguration config) {
+    private void connectWifiNetwork(WifiManager wifiManager, WifiConfiguration config,
+                                    String bssid, boolean isPrepared) {
         ConnectivityManager connManager = (ConnectivityManager)this.getSystemService(Context.CONNECTIVITY_SERVICE);
         Log.d(LOG_TAG, "trying to switch network...");
 
-        wifiManager.disconnect();
+        if (!isPrepared) {
+            wifiManager.disconnect();
+        }
         connChangeReceiver.ssid = config.SSID.replace("\"", "");
         connChangeReceiver.isServerAsked = true;
+        handoversStarted.inc();
         wifiManager.enableNetwork(config.networkId, true);
-        wifiManager.reconnect();
+        if (!isPrepared) {
+            wifiManager.reconnect();
+        }
 
 
         for (int i = 0; i < DELAY_TIMES; i++) {
-            SystemClock.sleep(DELAY_TIME_MS);
+            SystemClock.sleep(listenerConfig.switchTimeoutMs);
             NetworkInfo networkInfo = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
             if (networkInfo != null && networkInfo.isConnected()) {
                 WifiInfo wifiInfo = wifiManager.getConnectionInfo();
@@ -483,6 +977,9 @@ public class UDPListeningService extends IntentService implements SensorEventLis
 
         connChangeReceiver.isServerAsked = false;
         SDNCommonUtil.writeToExternalFile("20+", LOG_TAG, OUT_FILE);
+        handoverStats.recordFailure();
+        handoversFailed.inc();
+        ScanCache.getInstance().getScorer().recordOutcome(bssid, false);
         Log.w(LOG_TAG, "can not connect to new network: " + config.SSID);
         Log.i(LOG_TAG, "try to connect back to previous network");
         wifiManager.disableNetwork(config.networkId);
@@ -496,44 +993,637 @@ public class UDPListeningService extends IntentService implements SensorEventLis
         // will be off-line. However, not we just ignore this kind of condition
     }
 
-    private void getRunningAppInfo() {
-        String runningApp = "trivial";
-        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
-
-//        List<RunningTaskInfo> recentTasks = activityManager.getRunningTasks(1);
-//        for (RunningTaskInfo i: recentTasks) {
-//            if (i.baseActivity.toShortString().matches(".*android\\.youtube.*")) {
-//                Log.d("app", "task: " + i.baseActivity.toShortString() + " " + i.numRunning);
-//            }
-//        }
-
-        List<ActivityManager.RunningServiceInfo> services = activityManager.getRunningServices(Integer.MAX_VALUE);
-        for (ActivityManager.RunningServiceInfo i: services) {
-            if (i.service.toShortString().matches(".*android\\.providers.*DownloadService\\}")) {
-                Log.d(LOG_TAG, "running service: " + i.service.toShortString());
-                // String callingApp = context.getPackageManager().getNameForUid(i.uid);
-                // Log.d("app", "calling app: " + callingApp);
-                runningApp = "download";
-                break;
-            } else if (i.service.toShortString().matches(".*android\\.youtube.*")) {
-                Log.d(LOG_TAG, "running service: " + i.service.toShortString());
-                runningApp = "youtube";
+    /**
+     * send percentile summaries of the scan and handover delays to the agent.
+     * The management pkt should be like this:
+     * stats[|reset]
+     *
+     * With "reset", the summary of the current measurement window is sent
+     * and a new window is opened
+     *
+     * @param fields the splitted udp message
+     */
+    private void sendStatsReply(String[] fields) {
+        HandoverStats.Window w;
+        if (fields.length > 1 && fields[1].equals("reset")) {
+            w = handoverStats.reset();
+            Log.i(LOG_TAG, "opened a new statistics window");
+        } else {
+            w = handoverStats.getWindow();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("s|stats|");
+        sb.append(networkState.getState().mac);
+        sb.append("|" + HandoverStats.toSummary(w));
+
+        Log.d(LOG_TAG, sb.toString());
+
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(sb.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending stats reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * send the average and peak traffic rates of the latest seconds to the
+     * agent. The management pkt should be like this:
+     * traffic[|window_s]
+     *
+     * @param fields the splitted udp message
+     */
+    private void sendTrafficReply(String[] fields) {
+        int seconds = TRAFFIC_WINDOW_SECONDS;
+        if (fields.length > 1) {
+            try {
+                seconds = Integer.parseInt(fields[1]);
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "illegal traffic window, use default");
+            }
+        }
+
+        String message = TrafficMonitoringService.buildReply(this, seconds);
+        Log.d(LOG_TAG, message);
+
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(message, ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending traffic reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * start pushing telemetry reports to the agent, the interval is limited
+     * to TelemetryReporter.MIN_INTERVAL_MS ~ MAX_INTERVAL_MS.
+     * The management pkt should be like this:
+     * subscribe|interval_ms
+     *
+     * The accepted interval is replied as "s|subscribe|mac|interval_ms"
+     *
+     * @param fields the splitted udp message
+     */
+    private void subscribeTelemetry(String[] fields) {
+        long requested = TelemetryReporter.MIN_INTERVAL_MS;
+        if (fields.length > 1) {
+            try {
+                requested = Long.parseLong(fields[1]);
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "illegal telemetry interval, use default");
             }
         }
+        long interval = telemetryReporter.subscribe(requested);
 
         StringBuilder sb = new StringBuilder();
-        sb.append("s|app|");
+        sb.append("s|subscribe|");
+        sb.append(networkState.getState().mac);
+        sb.append("|" + interval);
 
-        WifiManager wifiManager = (WifiManager)this.getSystemService(Context.WIFI_SERVICE);
-        String mac = wifiManager.getConnectionInfo().getMacAddress();
-        sb.append(mac + "|" + runningApp);
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(sb.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending subscribe reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * send a snapshot of all metrics to the agent in one or more packets:
+     * s|metrics|mac|part&parts|name=value|name=value...
+     *
+     */
+    private void sendMetricsReply() {
+        List<String> fields = new ArrayList<String>();
+        for (Map.Entry<String, String> e: metrics.snapshot().entrySet()) {
+            fields.add(e.getKey() + "=" + e.getValue());
+        }
+
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            for (String reply: splitReply(MSG_METRICS, networkState.getState().mac, fields)) {
+                new UDPSendingTask().execute(reply, ipAddr, AGENT_PORT);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending metrics reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * split a reply into packets of at most MAX_REPLY_LEN:
+     * s|type|mac|part&parts|field|field...
+     * A field longer than a packet is sent in a packet of its own.
+     *
+     * @param fields without separators
+     */
+    private List<String> splitReply(String type, String mac, List<String> fields) {
+        // the part numbers are at most fields.size() + 1
+        String maxPart = (fields.size() + 1) + "&" + (fields.size() + 1);
+        int headerLength = new AgentReply(type, mac).add(maxPart).toString().length();
+
+        List<List<String>> parts = new ArrayList<List<String>>();
+        List<String> part = new ArrayList<String>();
+        int partLength = headerLength;
+        for (String field: fields) {
+            if (!part.isEmpty() && partLength + field.length() + 1 > MAX_REPLY_LEN) {
+                parts.add(part);
+                part = new ArrayList<String>();
+                partLength = headerLength;
+            }
+            part.add(field);
+            partLength += field.length() + 1;
+        }
+        parts.add(part);
+
+        List<String> replies = new ArrayList<String>();
+        for (int i = 0; i < parts.size(); i++) {
+            AgentReply reply = new AgentReply(type, mac).add((i + 1) + "&" + parts.size());
+            for (String field: parts.get(i)) {
+                reply.add(field);
+            }
+            replies.add(reply.toString());
+        }
+        return replies;
+    }
+
+    /**
+     * dump or control the trace of the hot paths, see Tracer.
+     * The management pkt should be like this:
+     * trace[|dump]        append all buffered events to SDNController/trace.txt
+     * trace|send[|n]      send the last n events to the agent
+     * trace|on or trace|off
+     *
+     * dump, on and off are answered by "s|trace|mac|dump&event_num",
+     * "s|trace|mac|on" or "s|trace|mac|off", any other command by
+     * "s|trace|mac|unknown". send is answered by one or
+     * more "s|trace|mac|part&parts|event|event..." packets, every event as
+     * "HH:mm:ss.SSS thread name arg=value arg=value"
+     *
+     * @param fields the splitted udp message
+     */
+    private void controlTrace(String[] fields) {
+        String command = fields.length > 1 ? fields[1].toLowerCase() : "dump";
+        String mac = networkState.getState().mac;
+        List<String> replies = new ArrayList<String>();
+
+        if (command.equals("on") || command.equals("off")) {
+            Tracer.setEnabled(command.equals("on"));
+            replies.add(new AgentReply(MSG_TRACE, mac).add(command).toString());
+        } else if (command.equals("send")) {
+            int n = DEFAULT_TRACE_SEND;
+            try {
+                n = fields.length > 2 ? Math.max(1, Math.min(MAX_TRACE_SEND, Integer.parseInt(fields[2]))) : n;
+            } catch (NumberFormatException e) {
+                Log.w(LOG_TAG, "invalid trace event number: " + fields[2]);
+            }
+
+            replies.addAll(splitReply(MSG_TRACE, mac, Tracer.dump(n)));
+        } else if (command.equals("dump")) {
+            List<String> lines = Tracer.dump(Tracer.MAX_EVENTS);
+            StringBuilder sb = new StringBuilder();
+            sb.append("# trace dump at ").append(System.currentTimeMillis());
+            for (String line: lines) {
+                sb.append("\n").append(line);
+            }
+            SDNCommonUtil.writeToExternalFile(sb.toString(), LOG_TAG, TRACE_FILE);
+            replies.add(new AgentReply(MSG_TRACE, mac).add("dump&" + lines.size()).toString());
+            Log.i(LOG_TAG, "trace dumped, " + lines.size() + " events");
+        } else {
+            Log.w(LOG_TAG, "unknown trace command: " + command);
+            replies.add(new AgentReply(MSG_TRACE, mac).add("unknown").toString());
+        }
+
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            for (String reply: replies) {
+                new UDPSendingTask().execute(reply, ipAddr, AGENT_PORT);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending trace reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * change the weights of the ap scoring used by "scan|max_age_ms|k".
+     * The management pkt should be like this:
+     * score[|name=value&name=value...]
+     *
+     * names are rssi, trend, motion, history, configured and throughput,
+     * see ApScorer.
+     * Weights which are not given are kept. The reply is
+     * "s|score|mac|rssi=w&trend=w&motion=w&history=w&configured=w&throughput=w" with
+     * the weights in use, unchanged if the spec was illegal
+     *
+     * @param fields the splitted udp message
+     */
+    private void controlScoring(String[] fields) {
+        ApScorer scorer = ScanCache.getInstance().getScorer();
+        if (fields.length > 1 && !fields[1].equals("")) {
+            try {
+                scorer.setWeights(scorer.getWeights().with(fields[1]));
+                Log.i(LOG_TAG, "ap scoring weights set to " + scorer.getWeights());
+            } catch (IllegalArgumentException e) {
+                Log.w(LOG_TAG, "illegal scoring weights, ignore them: " + e.getMessage());
+            }
+        }
+
+        AgentReply reply = new AgentReply(MSG_SCORE, networkState.getState().mac)
+                .add(scorer.getWeights().toString());
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(reply.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending score reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * run several commands and send their replies in one packet.
+     * The management pkt should be like this:
+     * bundle|id|deadline_ms|command|command...
+     *
+     * Every command is a normal message with "," instead of "|", e.g.
+     * "bundle|7|4000|motion|scan,0,5|app". The commands run in the given
+     * order, each one starts when the one before has finished: motion when
+     * the motion detection is done, scan when all scan turns are replied,
+     * others when their reply is sent. Commands not started by the deadline
+     * are skipped, and so are switch and wifioff, which block the listener
+     * for seconds.
+     *
+     * The reply is sent at the latest at the deadline, by a timer if a
+     * command still runs. It is "s|bundle|mac|id|part&parts|command&status|..."
+     * with status ok, timeout or skipped for each command, followed by the
+     * replies of the commands, one per line, split into packets of at most
+     * MAX_REPLY_LEN, see ReplyBundle.finish(). A reply which comes after the
+     * deadline is sent on its own.
+     *
+     * The bundle runs on the listener thread: no packet is received until
+     * it has finished, up to MAX_BUNDLE_DEADLINE_MS, or longer if a command
+     * like app blocks past the deadline. Later packets wait in the socket
+     * buffer.
+     *
+     * @param fields the splitted udp message
+     */
+    private void handleBundle(String[] fields) {
+        if (fields.length < 4) {
+            Log.w(LOG_TAG, "illegal bundle packet, ignore it");
+            return;
+        }
+
+        long deadlineMs = DEFAULT_BUNDLE_DEADLINE_MS;
+        try {
+            if (!fields[2].equals("")) {
+                deadlineMs = Math.max(0, Math.min(MAX_BUNDLE_DEADLINE_MS, Long.parseLong(fields[2])));
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "illegal bundle deadline, use default: " + fields[2]);
+        }
+
+        String[] commands = new String[fields.length - 3];
+        String[] types = new String[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            commands[i] = fields[i + 3].replace(',', '|');
+            types[i] = AgentMessage.parse(commands[i]).getType();
+        }
+
+        final ReplyBundle bundle = new ReplyBundle(fields[1], SystemClock.elapsedRealtime() + deadlineMs, types);
+        ReplyBundle.setActive(bundle);
+        // sends the reply at the deadline if a command still blocks this thread
+        ScheduledFuture<?> timer = TaskExecutors.getInstance().schedule(new Runnable() {
+            @Override
+            public void run() {
+                sendBundleReply(bundle);
+            }
+        }, deadlineMs);
+        try {
+            for (int i = 0; i < commands.length; i++) {
+                String type = types[i];
+                if (type.equals("") || type.equals(MSG_BUNDLE) || type.equals(MSG_SWITCH)
+                        || type.equals(MSG_WIFI_OFF) || bundle.isExpired()) {
+                    bundle.end(i, "skipped");
+                    continue;
+                }
+                if (!bundle.start(i)) {
+                    break; // finished by the timer
+                }
+                handleMessage(commands[i], commands[i].length());
+                while (!isCommandDone(type, bundle.getExpectedReplies()) && !bundle.isExpired()
+                       && !bundle.isFinished()) {
+                    bundle.await(BUNDLE_POLL_MS);
+                }
+                bundle.end(i, isCommandDone(type, bundle.getExpectedReplies()) ? "ok" : "timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            TaskExecutors.getInstance().cancel(timer);
+        }
+        sendBundleReply(bundle);
+    }
+
+    /* send the reply of a bundle, only the first call sends anything */
+    private void sendBundleReply(ReplyBundle bundle) {
+        List<String> packets = bundle.finish(networkState.getState().mac, MAX_REPLY_LEN);
+        if (packets == null) {
+            return;
+        }
+        Log.d(LOG_TAG, "bundle " + bundle.getId() + " finished, " + packets.size() + " packets");
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            for (String packet: packets) {
+                new UDPSendingTask().execute(packet, ipAddr, AGENT_PORT);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending bundle reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /* whether a command of a bundle has finished, see handleBundle() */
+    private boolean isCommandDone(String type, int replies) {
+        if (type.equals(MSG_MOTION)) {
+            return !listenerConfig.isMotionDetection || motionDetected;
+        } else if (type.equals(MSG_SCAN)) {
+            return replies > 0 && wifiScanReceiver.scanRemainingNum == 0;
+        } else if (replies > 0) {
+            return true;
+        }
+        // commands which are answered, everything else has no reply
+        return !(type.equals(MSG_PREPARE) || type.equals(MSG_APP) || type.equals(MSG_STATS)
+                 || type.equals(MSG_TRAFFIC) || type.equals(MSG_SUBSCRIBE) || type.equals(MSG_METRICS)
+                 || type.equals(MSG_DOWNLOAD) || type.equals(MSG_BENCHMARK) || type.equals(MSG_TRACE)
+                 || type.equals(MSG_SCORE) || type.equals(MSG_PREDICT));
+    }
+
+    /**
+     * reply the expected throughput of access points, see ThroughputModel.
+     * The management pkt should be like this:
+     * predict[|bssid&level|bssid&level...]
+     *
+     * Without any ap the current one at its current level is predicted.
+     * The reply is "s|predict|mac|bssid&level&rate_Bps&samples&basis|...",
+     * rate is -1 if nothing is known about the ap or the level
+     *
+     * @param fields the splitted udp message
+     */
+    private void sendPredictionReply(String[] fields) {
+        NetworkStateTracker.State network = networkState.getState();
+        ThroughputModel model = ThroughputModel.getInstance();
+        AgentReply reply = new AgentReply(MSG_PREDICT, network.mac);
+
+        if (fields.length < 2) {
+            if (network.bssid != null) {
+                reply.add(network.bssid + "&" + network.rssi + "&" + model.predict(network.bssid, network.rssi));
+            }
+        } else {
+            for (int i = 1; i < fields.length; i++) {
+                String[] ap = fields[i].split("&");
+                try {
+                    int level = Integer.parseInt(ap[1]);
+                    reply.add(ap[0] + "&" + level + "&" + model.predict(ap[0], level));
+                } catch (RuntimeException e) {
+                    Log.w(LOG_TAG, "illegal ap in predict packet, ignore it: " + fields[i]);
+                }
+            }
+        }
+
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(reply.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending predict reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * control the download job queue and reply the state of all jobs.
+     * The management pkt should be like this:
+     * download|add|url[|priority[|file_name[|digest]]]
+     * download|cancel|job_id
+     * download|concurrency|n
+     * download|list
+     *
+     * Without file_name a job downloads to sdn-job-<id>.tmp, the name "-"
+     * deletes the file once the job is finished, e.g. for generating load.
+     * digest is "sha-256" or "sha-256:expected_hex", see IntegrityDigest.
+     * The reply is
+     * s|download|mac|concurrency|queued_num|job_summary|job_summary...
+     * see DownloadJob.toSummary() for the job fields
+     *
+     * @param fields the splitted udp message
+     */
+    private void controlDownloadJobs(String[] fields) {
+        DownloadJobQueue queue = DownloadJobQueue.getInstance(this);
+        String action = fields.length > 1 ? fields[1] : "list";
+        try {
+            if (action.equals("add") && fields.length > 2 && !fields[2].equals("")) {
+                int priority = fields.length > 3 && !fields[3].equals("") ? Integer.parseInt(fields[3]) : 0;
+                String name = fields.length > 4 ? fields[4] : "";
+                String path = null;
+                DownloadJob.Listener listener = null;
+                if (name.equals("-")) {
+                    listener = discardingJobListener;
+                } else if (!name.equals("") && name.indexOf('/') < 0) {
+                    path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
+                            .getAbsolutePath() + "/" + name;
+                }
+                IntegrityDigest integrity = null;
+                if (fields.length > 5) {
+                    try {
+                        integrity = IntegrityDigest.fromSpec(fields[5]);
+                    } catch (IllegalArgumentException e) {
+                        Log.w(LOG_TAG, e.getMessage() + ", download job without integrity check");
+                    }
+                }
+                queue.enqueue(fields[2], path, priority, integrity, listener);
+            } else if (action.equals("cancel") && fields.length > 2) {
+                queue.cancel(Integer.parseInt(fields[2]));
+            } else if (action.equals("concurrency") && fields.length > 2) {
+                queue.setConcurrency(Integer.parseInt(fields[2]));
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "illegal download job message, only reply the job list");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("s|download|");
+        sb.append(networkState.getState().mac);
+        sb.append("|" + queue.getConcurrency() + "|" + queue.getQueuedNum());
+        for (DownloadJob job: queue.getJobs()) {
+            sb.append("|" + job.toSummary());
+        }
+
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(sb.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending download reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * download the test file several times in the background and reply the
+     * throughput and TTFB distribution when all runs are done.
+     * The management pkt should be like this:
+     * benchmark|runs|warmup_runs|keepalive(0/1)|pause_ms[|url]
+     * benchmark|cancel
+     *
+     * The reply is
+     * s|benchmark|mac|completed&failed|KB/s_min&median&p90&max|ttfb_ms_min&median&p90&max|signal&signal...
+     * or s|benchmark|mac|busy if a benchmark is running already. Throughput
+     * and TTFB are taken over the completed runs only, the signal of every
+     * run is listed. Every run is also written to download-benchmark.txt
+     *
+     * @param fields the splitted udp message
+     */
+    private void startBenchmark(String[] fields) {
+        if (fields.length > 1 && fields[1].equals("cancel")) {
+            DownloadBenchmark b = benchmark;
+            if (b != null) {
+                b.cancel();
+            }
+            return;
+        }
+        if (benchmark != null) {
+            sendBenchmarkReply("busy");
+            return;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        String url = fields.length > 5 && !fields[5].equals("") ? fields[5]
+                        : prefs.getString(PREF_DOWNLOADING_URL_KEY, DOWNLOADING_URL);
+        String path = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS)
+                        .getAbsolutePath() + "/sdn-benchmark.tmp";
+        final DownloadBenchmark b = new DownloadBenchmark(url, path);
+        try {
+            int runs = fields.length > 1 ? Integer.parseInt(fields[1]) : 5;
+            int warmupRuns = fields.length > 2 ? Integer.parseInt(fields[2]) : 1;
+            b.setRuns(runs, warmupRuns);
+            b.setKeepAlive(fields.length > 3 && fields[3].equals("1"));
+            if (fields.length > 4) {
+                b.setPauseMs(Long.parseLong(fields[4]));
+            }
+        } catch (NumberFormatException e) {
+            Log.w(LOG_TAG, "illegal benchmark parameters, use defaults");
+        }
+
+        b.setSignalSource(new DownloadBenchmark.SignalSource() {
+            @Override
+            public String getSignalLevel() {
+                NetworkStateTracker.State network = networkState.getState();
+                return network.type.equals("wifi") ? Integer.toString(network.rssi) : network.type;
+            }
+        });
+
+        benchmark = b;
+        Log.i(LOG_TAG, "download benchmark started: " + url);
+        boolean isStarted = TaskExecutors.getInstance().execute(TaskExecutors.IO, new Runnable() {
+            @Override
+            public void run() {
+                networkState.transferStarted();
+                try {
+                    NetworkStateTracker.State start = networkState.getState();
+                    List<DownloadBenchmark.Run> results = b.run();
+                    for (DownloadBenchmark.Run r: results) {
+                        if (r.isCompleted) {
+                            networkState.observeThroughput(start, r.rate, r.durationMs, 1);
+                        }
+                    }
+                    String summary = DownloadBenchmark.countSummary(results)
+                                     + "|" + DownloadBenchmark.throughputSummary(results)
+                                     + "|" + DownloadBenchmark.ttfbSummary(results)
+                                     + "|" + DownloadBenchmark.signalSummary(results);
+                    SDNCommonUtil.writeToExternalFile("[" + System.currentTimeMillis() + "] " + summary
+                                     + "\n" + DownloadBenchmark.toTable(results), LOG_TAG, BENCHMARK_FILE);
+                    sendBenchmarkReply(summary);
+                } catch (FileNotFoundException e) {
+                    Log.e(LOG_TAG, "benchmark file is not found!");
+                    sendBenchmarkReply("0&0|notfound");
+                } finally {
+                    networkState.transferFinished();
+                    benchmark = null;
+                }
+            }
+        });
+        if (!isStarted) {
+            benchmark = null;
+            sendBenchmarkReply("busy");
+        }
+    }
 
+    private void sendBenchmarkReply(String result) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("s|benchmark|");
+        sb.append(networkState.getState().mac);
+        sb.append("|" + result);
         Log.d(LOG_TAG, sb.toString());
 
         try {
-            int dst = wifiManager.getDhcpInfo().gateway;
-            InetAddress ipAddr = InetAddress.getByName(SDNCommonUtil.littleEndianIntToIpAddress(dst));
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
             new UDPSendingTask().execute(sb.toString(), ipAddr, AGENT_PORT);
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "stop sending benchmark reply: can not using current IP address");
+            e.printStackTrace();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "unknown udp sending error");
+            e.printStackTrace();
+        }
+    }
+
+    private void getRunningAppInfo() {
+        String runningApp = appClassifier.classify();
+
+        String mac = networkState.getState().mac;
+        AgentReply reply = new AgentReply(MSG_APP, mac).add(runningApp);
+
+        // measured top consumers, "pkg&rx_bps&tx_bps" for each
+        String consumers = uidTrafficSampler.toReply();
+        if (!consumers.equals("")) {
+            reply.add(consumers);
+        }
+
+        String msg = reply.toString();
+        Tracer.record(TRACE_APP_REPLY, msg.length());
+
+        try {
+            InetAddress ipAddr = SDNCommonUtil.getGatewayAddress(this);
+            new UDPSendingTask().execute(msg, ipAddr, AGENT_PORT);
             Log.i(LOG_TAG, "running app scan reply to agent " + ipAddr.getHostAddress());
         } catch (IllegalArgumentException e) {
             Log.e(LOG_TAG, "stop sending app reply: can not using current IP address");
@@ -547,16 +1637,15 @@ public class UDPListeningService extends IntentService implements SensorEventLis
 
     @Override
     public void onSensorChanged(SensorEvent event) {
-        valueX.add(event.values[0]);
-        valueY.add(event.values[1]);
-        valueZ.add(event.values[2]);
+        motionWindow.add(event.values[0], event.values[1], event.values[2]);
         sensorStatCount++;
         // Log.d(LOG_TAG, "acc sensor changed: " + event.values[0] + ", " + event.values[1] + ", " + event.values[2]);
         
-        if (sensorStatCount >= 12) {
+        if (sensorStatCount >= MotionWindow.DEFAULT_SAMPLES) {
             sensorManager.unregisterListener(this);
             sensorStatCount = 0;
             motionDetected = true;
+            telemetryReporter.setMotionState(isStatic() ? "static" : "moving");
             Log.d(LOG_TAG, "finish motion detection");
         }
         
@@ -567,42 +1656,11 @@ public class UDPListeningService extends IntentService implements SensorEventLis
         // TODO Auto-generated method stub
     }
 
-    double getMean(List<Float> values) {
-        double sum = 0;
-        int size = 0;
-        for(double value: values) {
-            sum += value;
-            size += 1;
-        }
-        return sum/size;
-    }
-    
-    double getStdDev(double mean, List<Float> values) {
-        double temp = 0;
-        int size = 0;
-        for(double value: values) {
-            temp += (mean - value) * (mean - value);
-            size += 1;
-        }
-        
-        return Math.sqrt(temp/size);
-    }
-    
+    /**
+     * Returns true if the last accelerometer samples hardly vary
+     */
     boolean isStatic() {
-        boolean result = false;
-        
-        double meanX = getMean(valueX);
-        double meanY = getMean(valueY);
-        double meanZ = getMean(valueZ);
-        double stdDevX = getStdDev(meanX, valueX);
-        double stdDevY = getStdDev(meanY, valueY);
-        double stdDevZ = getStdDev(meanZ, valueZ);
-        
-        if (stdDevX < 0.1 && stdDevY < 0.1 && stdDevZ < 0.1) {
-            result = true;
-        }
-        
-        return result;
+        return motionWindow.isStatic();
     }
 
 }
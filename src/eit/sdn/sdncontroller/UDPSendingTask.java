@@ -22,28 +22,61 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 
-import android.os.AsyncTask;
 import android.util.Log;
 
+import eit.sdn.sdncontroller.core.Tracer;
+
 /**
  * @author Yanhe Liu (yanhe.liu@cs.helsinki.fi)
  *
  */
 /**
- * AsyncTask class for sending udp packets.
+ * Task for sending udp packets.
  *
  * Android requires to execute networking operations in a different
- * AsyncTask thread like this
+ * thread, the packets are sent by the UDP pool of TaskExecutors, one
+ * after another in the order they were given. A reply taken by the active
+ * ReplyBundle is not sent on its own.
  *
  */
-class UDPSendingTask extends AsyncTask<Object, Void, Void> {
+class UDPSendingTask implements Runnable {
     String LOG_TAG = SDNCommonUtil.LOG_TAG;
 
+    private static final MetricsRegistry.Counter repliesSent =
+            MetricsRegistry.getInstance().counter("udp.replies.sent");
+    private static final MetricsRegistry.Counter repliesFailed =
+            MetricsRegistry.getInstance().counter("udp.replies.failed");
+    private static final MetricsRegistry.Gauge repliesPending =
+            MetricsRegistry.getInstance().gauge("udp.replies.pending");
+    private static final int TRACE_SENT = Tracer.event("udp.reply.sent", "bytes", "port");
+
+    private String message;
+    private InetAddress ip;
+    private int port;
+
+    /**
+     * queue the packet for sending
+     *
+     * @param params message, address and port
+     */
+    public void execute(Object... params) {
+        message = (String)params[0];
+        ip = (InetAddress)params[1];
+        port = (Integer)params[2];
+
+        if (ReplyBundle.offer(message)) {
+            return;
+        }
+        repliesPending.add(1);
+        if (!TaskExecutors.getInstance().execute(TaskExecutors.UDP, this)) {
+            repliesPending.add(-1);
+            repliesFailed.inc();
+            Log.e(LOG_TAG, "too many udp packets waiting, drop it");
+        }
+    }
+
     @Override
-    protected Void doInBackground(Object... params) {
-        String message = (String)params[0];
-        InetAddress ip = (InetAddress)params[1];
-        int port = (Integer)params[2];
+    public void run() {
         byte[] buf = message.getBytes();
 
         try {
@@ -51,14 +84,19 @@ class UDPSendingTask extends AsyncTask<Object, Void, Void> {
             DatagramPacket packet = new DatagramPacket(buf, buf.length, ip, port);
             socket.send(packet);
             socket.close();
+            repliesSent.inc();
+            Tracer.record(TRACE_SENT, buf.length, port);
         } catch (SocketException e) {
             Log.e(LOG_TAG, "udp socket error");
+            repliesFailed.inc();
             e.printStackTrace();
         } catch (IOException e) {
             Log.e(LOG_TAG, "failed to send udp packet");
+            repliesFailed.inc();
             e.printStackTrace();
+        } finally {
+            repliesPending.add(-1);
         }
-        return null;
     }
 
 }
@@ -0,0 +1,271 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller;
+
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.net.TrafficStats;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Periodically sample the rx/tx byte counters of every application uid and
+ * keep the top-K uids by recent throughput.
+ *
+ * Throughput of each uid is an exponentially decaying average, so a short
+ * burst does not push out a long-running transfer immediately. Package
+ * names are only looked up for uids which are actually reported.
+ *
+ */
+public class UidTrafficSampler {
+
+    private Context context;
+    private long periodMs;
+    private int topK;
+    private ScheduledFuture<?> sampling = null;
+
+    // per-uid state, all arrays are indexed the same way as uids
+    private int[] uids = new int[0];
+    private long[] lastRxBytes;
+    private long[] lastTxBytes;
+    private double[] rxRate; // bytes per second
+    private double[] txRate;
+    private long lastSampleTime = 0;
+    private int samplesSinceRefresh = 0;
+
+    private volatile Consumer[] topConsumers = new Consumer[0];
+    private SparseArray<String> packageNames = new SparseArray<String>();
+
+    // defaults
+    private String LOG_TAG = SDNCommonUtil.LOG_TAG;
+    private double DECAY_TIME_MS = 5000;
+    private int UID_REFRESH_SAMPLES = 60;
+
+    /**
+     * one heavy uid, rates are in bytes per second
+     */
+    public static class Consumer {
+        public final int uid;
+        public final long rxRate;
+        public final long txRate;
+
+        public Consumer(int uid, long rxRate, long txRate) {
+            this.uid = uid;
+            this.rxRate = rxRate;
+            this.txRate = txRate;
+        }
+    }
+
+    private class SamplingTask implements Runnable {
+        @Override
+        public void run() {
+            sample();
+        }
+    }
+
+    /**
+     * @param c context
+     * @param periodMs sampling period
+     * @param topK number of uids to be kept
+     */
+    public UidTrafficSampler(Context c, long periodMs, int topK) {
+        context = c;
+        this.periodMs = periodMs;
+        this.topK = Math.max(1, topK);
+    }
+
+    public synchronized void start() {
+        if (sampling == null) {
+            sampling = TaskExecutors.getInstance().scheduleWithFixedDelay(new SamplingTask(), 0, periodMs);
+            Log.d(LOG_TAG, "uid traffic sampling started, period " + periodMs + "ms");
+        }
+    }
+
+    /**
+     * change the sampling period, a running sampler is rescheduled
+     *
+     * @param periodMs new period
+     */
+    public synchronized void setPeriod(long periodMs) {
+        this.periodMs = periodMs;
+        if (sampling != null) {
+            stop();
+            start();
+        }
+    }
+
+    public synchronized void stop() {
+        if (sampling != null) {
+            TaskExecutors.getInstance().cancel(sampling);
+            sampling = null;
+        }
+    }
+
+    /**
+     * Returns the current top consumers, highest rx+tx rate first
+     */
+    public Consumer[] getTopConsumers() {
+        return topConsumers;
+    }
+
+    /**
+     * Returns the package name of a uid, several packages sharing the same
+     * uid are joined with ","
+     *
+     * @param uid
+     */
+    public synchronized String getPackageName(int uid) {
+        String name = packageNames.get(uid);
+        if (name == null) {
+            String[] packages = context.getPackageManager().getPackagesForUid(uid);
+            if (packages == null || packages.length == 0) {
+                name = Integer.toString(uid);
+            } else {
+                StringBuilder sb = new StringBuilder(packages[0]);
+                for (int i = 1; i < packages.length; i++) {
+                    sb.append(",").append(packages[i]);
+                }
+                name = sb.toString();
+            }
+            packageNames.put(uid, name);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the top consumers in reply format "pkg&rx_bps&tx_bps|...",
+     * or an empty string if there is no traffic
+     */
+    public String toReply() {
+        StringBuilder sb = new StringBuilder();
+        for (Consumer c: topConsumers) {
+            if (sb.length() > 0) {
+                sb.append("|");
+            }
+            sb.append(getPackageName(c.uid)).append("&").append(c.rxRate)
+              .append("&").append(c.txRate);
+        }
+        return sb.toString();
+    }
+
+    private void sample() {
+        if (samplesSinceRefresh == 0) {
+            refreshUids();
+        }
+        samplesSinceRefresh = (samplesSinceRefresh + 1) % UID_REFRESH_SAMPLES;
+
+        long now = SystemClock.elapsedRealtime();
+        long interval = now - lastSampleTime;
+        boolean isFirstSample = lastSampleTime == 0;
+        lastSampleTime = now;
+        double alpha = 1 - Math.exp(-interval / DECAY_TIME_MS);
+
+        int n = uids.length;
+        int[] top = new int[topK];
+        int topNum = 0;
+
+        for (int i = 0; i < n; i++) {
+            long rx = TrafficStats.getUidRxBytes(uids[i]);
+            long tx = TrafficStats.getUidTxBytes(uids[i]);
+            if (rx == TrafficStats.UNSUPPORTED || tx == TrafficStats.UNSUPPORTED) {
+                continue;
+            }
+
+            if (!isFirstSample && lastRxBytes[i] >= 0 && interval > 0) {
+                double rxNow = Math.max(0, rx - lastRxBytes[i]) * 1000.0 / interval;
+                double txNow = Math.max(0, tx - lastTxBytes[i]) * 1000.0 / interval;
+                rxRate[i] += alpha * (rxNow - rxRate[i]);
+                txRate[i] += alpha * (txNow - txRate[i]);
+            }
+            lastRxBytes[i] = rx;
+            lastTxBytes[i] = tx;
+
+            // insert into the sorted top-k list
+            double total = rxRate[i] + txRate[i];
+            if (total < 1 || (topNum == topK && total <= rxRate[top[topNum - 1]] + txRate[top[topNum - 1]])) {
+                continue;
+            }
+            int pos = topNum < topK ? topNum++ : topK - 1;
+            while (pos > 0 && rxRate[top[pos - 1]] + txRate[top[pos - 1]] < total) {
+                top[pos] = top[pos - 1];
+                pos--;
+            }
+            top[pos] = i;
+        }
+
+        Consumer[] consumers = new Consumer[topNum];
+        for (int i = 0; i < topNum; i++) {
+            consumers[i] = new Consumer(uids[top[i]], (long)rxRate[top[i]], (long)txRate[top[i]]);
+        }
+        topConsumers = consumers;
+    }
+
+    /* reload the uid list from installed applications, keep existing state */
+    private void refreshUids() {
+        PackageManager pm = context.getPackageManager();
+        List<ApplicationInfo> apps = pm.getInstalledApplications(0);
+        if (apps == null) {
+            return;
+        }
+
+        int[] newUids = new int[apps.size()];
+        int n = 0;
+        for (ApplicationInfo info: apps) {
+            boolean isDuplicate = false;
+            for (int i = 0; i < n && !isDuplicate; i++) {
+                isDuplicate = newUids[i] == info.uid;
+            }
+            if (!isDuplicate) {
+                newUids[n++] = info.uid;
+            }
+        }
+
+        long[] newLastRx = new long[n];
+        long[] newLastTx = new long[n];
+        double[] newRxRate = new double[n];
+        double[] newTxRate = new double[n];
+        for (int i = 0; i < n; i++) {
+            newLastRx[i] = -1;
+            for (int j = 0; j < uids.length; j++) {
+                if (uids[j] == newUids[i]) {
+                    newLastRx[i] = lastRxBytes[j];
+                    newLastTx[i] = lastTxBytes[j];
+                    newRxRate[i] = rxRate[j];
+                    newTxRate[i] = txRate[j];
+                    break;
+                }
+            }
+        }
+
+        int[] trimmed = new int[n];
+        System.arraycopy(newUids, 0, trimmed, 0, n);
+        uids = trimmed;
+        lastRxBytes = newLastRx;
+        lastTxBytes = newLastTx;
+        rxRate = newRxRate;
+        txRate = newTxRate;
+
+        synchronized (this) {
+            packageNames.clear();
+        }
+    }
+}
@@ -20,11 +20,13 @@ import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.app.IntentService;
 import android.content.BroadcastReceiver;
@@ -39,14 +41,14 @@ import android.net.wifi.WifiConfiguration;
 import android.net.wifi.WifiInfo;
 import android.net.wifi.WifiManager;
 import android.net.wifi.WifiManager.WifiLock;
-import android.os.AsyncTask;
 import android.os.Environment;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.text.format.DateFormat;
 import android.util.Log;
 import android.widget.Toast;
 
+import eit.sdn.sdncontroller.core.LogRecordEncoder;
+
 /**
  * @author Yanhe Liu <yanhe.liu@cs.helsinki.fi>
  *
@@ -62,6 +64,8 @@ public class WifiScanningService extends IntentService {
     private WifiScanReceiver wifiScanReceiver; // used for scan wifi ap
     private Map<String, String> apMap = new ConcurrentHashMap<String, String>();
     private Map<String, Integer> testedAPMap = new ConcurrentHashMap<String, Integer>();
+    private MetricsRegistry.Counter scansStarted = MetricsRegistry.getInstance().counter("scan.started");
+    private MetricsRegistry.Counter scansCompleted = MetricsRegistry.getInstance().counter("scan.completed");
 
     // defaults
     private String LOG_TAG = SDNCommonUtil.LOG_TAG;
@@ -77,6 +81,7 @@ public class WifiScanningService extends IntentService {
     private String DEFAULT_SCAN_INTERVAL = "10";
     private String DEFAULT_DELAY_TIME_MS = "2000";
     private int DELAY_TIMES = 3;
+    private long CONNECTION_TEST_WAIT_MS = 2500;
 
     public static final String ACTION_SCAN_UPDATE = "eit.sdn.sdncontroller.ACTION_SCAN_UPDATE";
     public static final String EXTRA_KEY_UPDATE = "SCAN_NUM";
@@ -93,15 +98,20 @@ public class WifiScanningService extends IntentService {
             if (isServiceAsked) {
                 Log.d(LOG_TAG, "wifi scan result is available...");
                 WifiManager wifiManager = (WifiManager)c.getSystemService(Context.WIFI_SERVICE);
-                List<ScanResult> scanResultList = wifiManager.getScanResults();
+                // also answers scan requests of the controller
+                List<ScanResult> scanResultList = ScanCache.getInstance().update(wifiManager.getScanResults()).results;
+                LogRecordEncoder encoder = LogRecordEncoder.getInstance();
+                // all results of a scan are appended to LOG_FILE at once
+                StringBuilder logStr = new StringBuilder();
 
                 for (ScanResult r: scanResultList) {
 
-                    Date d = new Date();
-                    CharSequence s  = DateFormat.format("hh:mm:ss, MMMM d, yyyy", d.getTime());
-                    String timestamp = "[" + s.toString() + "] ";
-                    String logStr = timestamp + r.SSID + " | " + r.BSSID + " | " + r.level;
-                    SDNCommonUtil.writeToExternalFile(logStr, LOG_TAG, LOG_FILE);
+                    long now = System.currentTimeMillis();
+                    String timestamp = encoder.timestamp(now);
+                    if (logStr.length() > 0) {
+                        logStr.append("\n");
+                    }
+                    encoder.append(logStr, now, r.SSID, r.BSSID, Integer.toString(r.level));
                     // Log.d(LOG_TAG, r.SSID + " " + Integer.toString(r.level));
 
                     if (!apMap.containsKey(r.BSSID)) {
@@ -128,6 +138,9 @@ public class WifiScanningService extends IntentService {
                         }
                     }
                 }
+                if (logStr.length() > 0) {
+                    SDNCommonUtil.writeToExternalFile(logStr.toString(), LOG_TAG, LOG_FILE);
+                }
 
                 // Log.d("test", testedAPMap.toString());
 
@@ -140,6 +153,7 @@ public class WifiScanningService extends IntentService {
                 Log.d(LOG_TAG, "wrote wifi scanning result on external storage");
                 isServiceAsked = false;
                 isScanningFinished = true;
+                scansCompleted.inc();
             }
         }
 
@@ -157,6 +171,12 @@ public class WifiScanningService extends IntentService {
     }
 
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        TaskExecutors.getInstance().acquire("WifiScanningService");
+    }
+
     @Override
     protected void onHandleIntent(Intent arg0) {
         isEnabled = true;
@@ -185,6 +205,7 @@ public class WifiScanningService extends IntentService {
             isScanningFinished = false;
             wifiScanReceiver.setFlag(true);
             wifiManager.startScan();
+            scansStarted.inc();
             scanNum++;
 
             // send broadcast to main activity
@@ -215,6 +236,7 @@ public class WifiScanningService extends IntentService {
     public void onDestroy() {
         terminateService();
         unregisterReceiver(wifiScanReceiver);
+        TaskExecutors.getInstance().release("WifiScanningService");
         Log.d(LOG_TAG, "wifi scanning service stopped");
         super.onDestroy();
     }
@@ -231,14 +253,7 @@ public class WifiScanningService extends IntentService {
                 && wifiInfo.getBSSID().equals(bssid)) {
 
                 Log.d(logTag, "same ssid to current one");
-                TestConnectionTask task = new TestConnectionTask(this);
-                task.execute(wifiInfo.getSSID(), wifiInfo.getBSSID(), level);
-                try {
-                    task.get(2500, TimeUnit.MILLISECONDS);
-                } catch (Exception e) {
-                    Log.e(logTag, "failed to proceed connection testing");
-                    e.printStackTrace();
-                }
+                testConnection(wifiInfo.getSSID(), wifiInfo.getBSSID(), level, logTag);
         } else {
             Log.d(logTag, "try to find network config");
             // find corresponding config
@@ -282,14 +297,7 @@ public class WifiScanningService extends IntentService {
                         && wifiInfo.getBSSID() != null
                         && wifiInfo.getBSSID().equals(bssid)) {
                     Log.d(LOG_TAG, "succeeded to connect to network " + ssid + " - " + bssid);
-                    TestConnectionTask task = new TestConnectionTask(this);
-                    task.execute(wifiInfo.getSSID(), wifiInfo.getBSSID(), level);
-                    try {
-                        task.get(2500, TimeUnit.MILLISECONDS);
-                    } catch (Exception e) {
-                        Log.e(logTag, "failed to proceed connection testing");
-                        e.printStackTrace();
-                    }
+                    testConnection(wifiInfo.getSSID(), wifiInfo.getBSSID(), level, logTag);
                     return;
                 }
             }
@@ -302,34 +310,54 @@ public class WifiScanningService extends IntentService {
     }
 
     /**
-     * AsyncTask class for testing network connection
+     * run a connection test in the IO pool and wait for it at most
+     * CONNECTION_TEST_WAIT_MS
+     */
+    private void testConnection(String ssid, String bssid, int level, String logTag) {
+        Future<Void> result = null;
+        try {
+            result = TaskExecutors.getInstance().submit(TaskExecutors.IO,
+                    new TestConnectionTask(this, ssid, bssid, level));
+            result.get(CONNECTION_TEST_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.e(logTag, "connection testing timed out");
+            result.cancel(true);
+        } catch (Exception e) {
+            Log.e(logTag, "failed to proceed connection testing");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Task for testing network connection
      *
      * Android requires to execute networking operations in a different
-     * AsyncTask thread like this
+     * thread, it runs in the IO pool of TaskExecutors
      *
      */
-    private class TestConnectionTask extends AsyncTask<Object, Void, Void> {
+    private class TestConnectionTask implements Callable<Void> {
         private String logTag = "testConnectionTask";
         private Context context;
+        private String ssid;
+        private String bssid;
+        private int level;
 
-        public TestConnectionTask (Context c){
+        public TestConnectionTask(Context c, String ssid, String bssid, int level) {
             context = c;
-       }
+            this.ssid = ssid;
+            this.bssid = bssid;
+            this.level = level;
+        }
 
         @Override
-        protected Void doInBackground(Object... params) {
-            String ssid = (String)params[0];
-            String bssid = (String)params[1];
-            int level = (Integer)params[2];
+        public Void call() {
             WifiManager wifiMgr = (WifiManager)context.getSystemService(Context.WIFI_SERVICE);
 
             try {
                 Log.d(logTag, "try to connect to www.google.com");
                 InetAddress addr = InetAddress.getByName("www.google.com");
                 if(addr.isReachable(2000)) {
-                    Date d = new Date();
-                    CharSequence s  = DateFormat.format("hh:mm:ss, MMMM d, yyyy", d.getTime());
-                    String timestamp = "[" + s.toString() + "] ";
+                    String timestamp = LogRecordEncoder.getInstance().timestamp(System.currentTimeMillis());
                     String data = timestamp + ssid + " - " + bssid;
                     Log.d(logTag, "succeeded to connect to www.google.com");
                     testedAPMap.put(bssid, 0);
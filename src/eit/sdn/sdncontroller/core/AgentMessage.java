@@ -0,0 +1,111 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core;
+
+import java.util.Arrays;
+
+/**
+ * A management message received from the SDN AP agent, e.g.
+ * "switch|ssid|auth_alg|passwd" or "scan".
+ *
+ * The fields are split at '|' without a regex and with the same result as
+ * message.split("\\|"): trailing empty fields are dropped. The first field
+ * is the message type, compared in lower case.
+ *
+ */
+public class AgentMessage {
+
+    public static final char TOKEN = '|';
+
+    private static final String[] NO_FIELDS = new String[0];
+
+    private final String type;
+    private final String[] fields;
+
+    private AgentMessage(String type, String[] fields) {
+        this.type = type;
+        this.fields = fields;
+    }
+
+    /**
+     * split a received message into its fields
+     *
+     * @param message the message without surrounding white space
+     */
+    public static AgentMessage parse(String message) {
+        String[] fields = split(message);
+        String type = fields.length > 0 ? fields[0].toLowerCase() : "";
+        return new AgentMessage(type, fields);
+    }
+
+    /**
+     * Returns the fields of a message, equal to message.split("\\|")
+     */
+    public static String[] split(String message) {
+        int last = message.length();
+        // trailing empty fields are dropped
+        while (last > 0 && message.charAt(last - 1) == TOKEN) {
+            last--;
+        }
+        if (last == 0) {
+            return message.length() == 0 ? new String[] { "" } : NO_FIELDS;
+        }
+
+        String[] fields = new String[8];
+        int n = 0;
+        int start = 0;
+        int end;
+        while ((end = message.indexOf(TOKEN, start)) >= 0 && end < last) {
+            if (n == fields.length) {
+                fields = Arrays.copyOf(fields, n * 2);
+            }
+            fields[n++] = message.substring(start, end);
+            start = end + 1;
+        }
+        if (n + 1 != fields.length) {
+            fields = Arrays.copyOf(fields, n + 1);
+        }
+        fields[n] = message.substring(start, last);
+        return fields;
+    }
+
+    /** Returns the message type in lower case, "" for an empty message */
+    public String getType() {
+        return type;
+    }
+
+    /** Returns all fields, the type included */
+    public String[] getFields() {
+        return fields;
+    }
+
+    public int size() {
+        return fields.length;
+    }
+
+    /**
+     * Returns the field at index, or def if the message is shorter
+     */
+    public String getField(int index, String def) {
+        return index < fields.length ? fields[index] : def;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(fields);
+    }
+}
@@ -0,0 +1,81 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core;
+
+/**
+ * Builds a reply to the SDN AP agent: "s|type|mac|field|field...", where a
+ * field with several values is joined by '&', e.g. "ssid&bssid&level".
+ *
+ * All values go into one StringBuilder, so a reply with many fields does
+ * not create a string for every field.
+ *
+ */
+public class AgentReply {
+
+    private final StringBuilder sb;
+
+    /**
+     * @param type reply type, e.g. "scan"
+     * @param mac wifi mac address of this device
+     */
+    public AgentReply(String type, String mac) {
+        sb = new StringBuilder(128);
+        sb.append("s|").append(type).append('|').append(mac);
+    }
+
+    public AgentReply add(String value) {
+        sb.append('|').append(value);
+        return this;
+    }
+
+    public AgentReply add(long value) {
+        sb.append('|').append(value);
+        return this;
+    }
+
+    /**
+     * add a field with several values joined by '&'
+     */
+    public AgentReply add(String first, String second, int third) {
+        sb.append('|').append(first).append('&').append(second).append('&').append(third);
+        return this;
+    }
+
+    /**
+     * add a field with several values joined by '&'
+     */
+    public AgentReply add(String... values) {
+        sb.append('|');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append('&');
+            }
+            sb.append(values[i]);
+        }
+        return this;
+    }
+
+    /** Returns the number of characters so far */
+    public int length() {
+        return sb.length();
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
@@ -0,0 +1,306 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package eit.sdn.sdncontroller.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Ranks the access points of a scan on the device, so only the best
+ * candidates have to be sent to the controller.
+ *
+ * The score of a candidate is a weighted sum of
+ * <ul>
+ * <li>rssi: the level, mapped from MIN_LEVEL..MAX_LEVEL to 0..1</li>
+ * <li>trend: the level change over the last scans, TREND_SCALE dB/s
+ *     mapped to 1, multiplied by the motion weight on a moving device</li>
+ * <li>history: success rate of earlier handovers to the ap, 0.5 if
+ *     unknown</li>
+ * <li>configured: 1 if the ssid already has a network config</li>
+ * <li>throughput: the predicted rate of the candidate, REFERENCE_RATE
+ *     mapped to 1, 0.5 if unknown</li>
+ * </ul>
+ *
+ * Scan levels and handover results are kept for at most maxAps access
+ * points, the least recently used ones are dropped. All methods are
+ * thread-safe.
+ *
+ */
+public class ApScorer {
+
+    public static final int DEFAULT_MAX_APS = 256;
+    public static final int MIN_LEVEL = -100;
+    public static final int MAX_LEVEL = -30;
+    public static final double TREND_SCALE = 5;      // dB per second
+    public static final long TREND_WINDOW_MS = 30000;
+    public static final long MIN_SAMPLE_GAP_MS = 1000; // same scan seen by several receivers
+    public static final int LEVEL_SAMPLES = 4;
+    public static final double HISTORY_ALPHA = 0.3;
+    public static final double REFERENCE_RATE = 2 * 1024 * 1024; // bytes per second
+
+    private final Map<String, ApState> aps;
+    private volatile Weights weights = Weights.DEFAULT;
+
+    /**
+     * weights of the score terms, immutable
+     */
+    public static final class Weights {
+        public static final Weights DEFAULT = new Weights(1.0, 0.5, 2.0, 0.5, 0.2, 0.5);
+        private static final List<String> NAMES = Arrays.asList(
+                "rssi", "trend", "motion", "history", "configured", "throughput");
+
+        public final double rssi;
+        public final double trend;
+        public final double motion;
+        public final double history;
+        public final double configured;
+        public final double throughput;
+
+        public Weights(double rssi, double trend, double motion, double history, double configured,
+                       double throughput) {
+            this.rssi = rssi;
+            this.trend = trend;
+            this.motion = motion;
+            this.history = history;
+            this.configured = configured;
+            this.throughput = throughput;
+        }
+
+        /**
+         * Returns a copy with the weights of a spec like "rssi=1&trend=0.8"
+         * replaced, the others are kept
+         *
+         * @throws IllegalArgumentException for an unknown name or a value
+         *         which is not a number
+         */
+        public Weights with(String spec) {
+            double[] w = { rssi, trend, motion, history, configured, throughput };
+            for (String pair: spec.split("&")) {
+                if (pair.equals("")) {
+                    continue;
+                }
+                int eq = pair.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("missing value: " + pair);
+                }
+                String name = pair.substring(0, eq).trim().toLowerCase();
+                int i = NAMES.indexOf(name);
+                if (i < 0) {
+                    throw new IllegalArgumentException("unknown weight: " + name);
+                }
+                try {
+                    w[i] = Double.parseDouble(pair.substring(eq + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("illegal value: " + pair);
+                }
+            }
+            return new Weights(w[0], w[1], w[2], w[3], w[4], w[5]);
+        }
+
+        @Override
+        public String toString() {
+            return "rssi=" + rssi + "&trend=" + trend + "&motion=" + motion
+                    + "&history=" + history + "&configured=" + configured
+                    + "&throughput=" + throughput;
+        }
+    }
+
+    /**
+     * one access point of a scan, score is 0 until it is ranked
+     */
+    public static final class Candidate {
+        public final String ssid;
+        public final String bssid;
+        public final int level;
+        /** bytes per second, -1 if unknown */
+        public final long predictedRate;
+        public final double score;
+
+        public Candidate(String ssid, String bssid, int level) {
+            this(ssid, bssid, level, -1, 0);
+        }
+
+        public Candidate(String ssid, String bssid, int level, long predictedRate) {
+            this(ssid, bssid, level, predictedRate, 0);
+        }
+
+        public Candidate(String ssid, String bssid, int level, long predictedRate, double score) {
+            this.ssid = ssid;
+            this.bssid = bssid;
+            this.level = level;
+            this.predictedRate = predictedRate;
+            this.score = score;
+        }
+    }
+
+    /* scan levels and handover results of one ap */
+    private static class ApState {
+        final int[] levels = new int[LEVEL_SAMPLES];
+        final long[] times = new long[LEVEL_SAMPLES];
+        int next = 0;
+        int size = 0;
+        double successRate = -1; // unknown
+
+        void add(int level, long timeMs) {
+            int last = (next + LEVEL_SAMPLES - 1) % LEVEL_SAMPLES;
+            if (size > 0 && timeMs - times[last] < MIN_SAMPLE_GAP_MS) {
+                levels[last] = level;
+                return;
+            }
+            levels[next] = level;
+            times[next] = timeMs;
+            next = (next + 1) % LEVEL_SAMPLES;
+            if (size < LEVEL_SAMPLES) {
+                size++;
+            }
+        }
+
+        /* dB per second between the oldest and newest sample in the window */
+        double trend(long nowMs) {
+            int newest = (next + LEVEL_SAMPLES - 1) % LEVEL_SAMPLES;
+            int oldest = newest;
+            for (int i = 1; i < size; i++) {
+                int j = (newest + LEVEL_SAMPLES - i) % LEVEL_SAMPLES;
+                if (nowMs - times[j] > TREND_WINDOW_MS) {
+                    break;
+                }
+                oldest = j;
+            }
+            long dt = times[newest] - times[oldest];
+            if (size < 2 || dt <= 0 || nowMs - times[newest] > TREND_WINDOW_MS) {
+                return 0;
+            }
+            return (levels[newest] - levels[oldest]) * 1000.0 / dt;
+        }
+    }
+
+    private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Double.compare(b.score, a.score);
+        }
+    };
+
+    public ApScorer() {
+        this(DEFAULT_MAX_APS);
+    }
+
+    /**
+     * @param maxAps access points whose history is kept
+     */
+    public ApScorer(final int maxAps) {
+        if (maxAps <= 0) {
+            throw new IllegalArgumentException("invalid ap number " + maxAps);
+        }
+        aps = new LinkedHashMap<String, ApState>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ApState> eldest) {
+                return size() > maxAps;
+            }
+        };
+    }
+
+    public Weights getWeights() {
+        return weights;
+    }
+
+    public void setWeights(Weights weights) {
+        this.weights = weights;
+    }
+
+    /**
+     * add the level of an ap seen by a scan
+     *
+     * @param timeMs monotonic time of the scan, e.g. elapsedRealtime
+     */
+    public synchronized void observe(String bssid, int level, long timeMs) {
+        getState(bssid).add(level, timeMs);
+    }
+
+    /**
+     * add the result of a handover to an ap
+     */
+    public synchronized void recordOutcome(String bssid, boolean isSuccess) {
+        ApState s = getState(bssid);
+        double value = isSuccess ? 1 : 0;
+        s.successRate = s.successRate < 0 ? value : s.successRate + HISTORY_ALPHA * (value - s.successRate);
+    }
+
+    /**
+     * Returns the level change of an ap in dB/s, 0 if not known
+     */
+    public synchronized double getTrend(String bssid, long nowMs) {
+        ApState s = aps.get(bssid);
+        return s == null ? 0 : s.trend(nowMs);
+    }
+
+    /**
+     * score the candidates and return the best ones
+     *
+     * @param candidates access points of a scan
+     * @param configuredSsids ssids with a network config, without quotes
+     * @param isMoving whether the device is moving
+     * @param nowMs same clock as observe()
+     * @param k candidates returned at most
+     * @return scored candidates, highest score first
+     */
+    public synchronized List<Candidate> rank(List<Candidate> candidates, Set<String> configuredSsids,
+                                             boolean isMoving, long nowMs, int k) {
+        Weights w = weights;
+        double trendWeight = w.trend * (isMoving ? w.motion : 1);
+        List<Candidate> scored = new ArrayList<Candidate>(candidates.size());
+        for (Candidate c: candidates) {
+            double level = clamp((c.level - MIN_LEVEL) / (double)(MAX_LEVEL - MIN_LEVEL), 0, 1);
+            ApState s = aps.get(c.bssid);
+            double trend = s == null ? 0 : clamp(s.trend(nowMs) / TREND_SCALE, -1, 1);
+            double history = s == null || s.successRate < 0 ? 0.5 : s.successRate;
+            double configured = configuredSsids.contains(c.ssid) ? 1 : 0;
+            double rate = c.predictedRate < 0 ? 0.5 : Math.min(1, c.predictedRate / REFERENCE_RATE);
+            double score = w.rssi * level + trendWeight * trend + w.history * history
+                    + w.configured * configured + w.throughput * rate;
+            scored.add(new Candidate(c.ssid, c.bssid, c.level, c.predictedRate, score));
+        }
+        Collections.sort(scored, BY_SCORE);
+        return k < scored.size() ? new ArrayList<Candidate>(scored.subList(0, Math.max(0, k))) : scored;
+    }
+
+    public synchronized int size() {
+        return aps.size();
+    }
+
+    private ApState getState(String bssid) {
+        ApState s = aps.get(bssid);
+        if (s == null) {
+            s = new ApState();
+            aps.put(bssid, s);
+        }
+        return s;
+    }
+
+    private static double clamp(double v, double min, double max) {
+        return v < min ? min : (v > max ? max : v);
+    }
+}
@@ -0,0 +1,47 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core;
+
+/**
+ * Conversion of the addresses reported by WifiManager.
+ *
+ */
+public class IpAddressUtil {
+
+    private IpAddressUtil() {
+    }
+
+    /**
+     * Returns the 32bit dotted format of the provided long ip.
+     *
+     * @param ip the int ip in little-endian
+     * @return the 32bit dotted format of <code>ip</code>
+     * @throws IllegalArgumentException if <code>ip</code> is invalid
+     */
+    public static String littleEndianIntToIpAddress(int ip) {
+        // if ip is smaller than 0.0.0.0
+        if (ip < 0) {
+            throw new IllegalArgumentException("invalid ip");
+        }
+        StringBuilder ipAddress = new StringBuilder(15);
+        ipAddress.append(ip & 0xff).append('.')
+                 .append((ip >> 8) & 0xff).append('.')
+                 .append((ip >> 16) & 0xff).append('.')
+                 .append(ip >>> 24);
+        return ipAddress.toString();
+    }
+}
@@ -0,0 +1,103 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Encodes the lines of the log files on the sd card:
+ * "[hh:mm:ss, MMMM d, yyyy] field | field | field".
+ *
+ * Lines are written in bursts, e.g. one per access point of a scan, so the
+ * formatted timestamp is kept for the current second and only formatted
+ * again when the second changes.
+ *
+ */
+public class LogRecordEncoder {
+
+    public static final String TIMESTAMP_FORMAT = "hh:mm:ss, MMMM d, yyyy";
+    public static final String SEPARATOR = " | ";
+
+    private static final LogRecordEncoder instance = new LogRecordEncoder(Locale.getDefault());
+
+    private final SimpleDateFormat format;
+    private volatile Timestamp cached = new Timestamp(Long.MIN_VALUE, "");
+
+    /* formatted prefix of one second, replaced as a whole */
+    private static class Timestamp {
+        final long second;
+        final String prefix;
+
+        Timestamp(long second, String prefix) {
+            this.second = second;
+            this.prefix = prefix;
+        }
+    }
+
+    public LogRecordEncoder(Locale locale) {
+        format = new SimpleDateFormat(TIMESTAMP_FORMAT, locale);
+    }
+
+    /** Returns the encoder with the default locale */
+    public static LogRecordEncoder getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the line prefix "[hh:mm:ss, MMMM d, yyyy] " of a time
+     *
+     * @param timeMs wall clock time in ms
+     */
+    public String timestamp(long timeMs) {
+        long second = timeMs / 1000;
+        Timestamp t = cached;
+        if (t.second != second) {
+            String s;
+            synchronized (format) {
+                s = "[" + format.format(new Date(timeMs)) + "] ";
+            }
+            t = new Timestamp(second, s);
+            cached = t;
+        }
+        return t.prefix;
+    }
+
+    /**
+     * Returns a log line with the fields joined by " | "
+     */
+    public String encode(long timeMs, String... fields) {
+        StringBuilder sb = new StringBuilder(64);
+        append(sb, timeMs, fields);
+        return sb.toString();
+    }
+
+    /**
+     * append a log line without line break to sb
+     */
+    public StringBuilder append(StringBuilder sb, long timeMs, String... fields) {
+        sb.append(timestamp(timeMs));
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append(SEPARATOR);
+            }
+            sb.append(fields[i]);
+        }
+        return sb;
+    }
+}
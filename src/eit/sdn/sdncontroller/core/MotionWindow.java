@@ -0,0 +1,131 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core;
+
+/**
+ * Accelerometer samples of one motion detection and the check whether the
+ * device stands still.
+ *
+ * The samples are kept in primitive arrays, so adding a sample does not
+ * box three floats. When the window is full, the oldest sample is replaced.
+ *
+ */
+public class MotionWindow {
+
+    public static final int DEFAULT_SAMPLES = 12;
+    public static final double DEFAULT_STATIC_THRESHOLD = 0.1;
+
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private int next = 0;
+    private int size = 0;
+
+    public MotionWindow() {
+        this(DEFAULT_SAMPLES);
+    }
+
+    /**
+     * @param capacity samples kept
+     */
+    public MotionWindow(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        x = new float[capacity];
+        y = new float[capacity];
+        z = new float[capacity];
+    }
+
+    public void add(float valueX, float valueY, float valueZ) {
+        x[next] = valueX;
+        y[next] = valueY;
+        z[next] = valueZ;
+        next = (next + 1) % x.length;
+        if (size < x.length) {
+            size++;
+        }
+    }
+
+    public void clear() {
+        next = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == x.length;
+    }
+
+    /**
+     * Returns true if the standard deviation of all three axes is below
+     * threshold; false for an empty window
+     */
+    public boolean isStatic(double threshold) {
+        return size > 0
+                && getStdDev(x) < threshold
+                && getStdDev(y) < threshold
+                && getStdDev(z) < threshold;
+    }
+
+    public boolean isStatic() {
+        return isStatic(DEFAULT_STATIC_THRESHOLD);
+    }
+
+    /** Returns the mean of an axis 0 ~ 2 */
+    public double getMean(int axis) {
+        return getMean(values(axis));
+    }
+
+    /** Returns the population standard deviation of an axis 0 ~ 2 */
+    public double getStdDev(int axis) {
+        return getStdDev(values(axis));
+    }
+
+    private float[] values(int axis) {
+        switch (axis) {
+        case 0:
+            return x;
+        case 1:
+            return y;
+        case 2:
+            return z;
+        default:
+            throw new IllegalArgumentException("invalid axis " + axis);
+        }
+    }
+
+    private double getMean(float[] values) {
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            sum += values[i];
+        }
+        return sum / size;
+    }
+
+    private double getStdDev(float[] values) {
+        double mean = getMean(values);
+        double temp = 0;
+        for (int i = 0; i < size; i++) {
+            temp += (mean - values[i]) * (mean - values[i]);
+        }
+        return Math.sqrt(temp / size);
+    }
+}
@@ -0,0 +1,214 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+
+package eit.sdn.sdncontroller.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Expected throughput of an access point at a signal level, learned from
+ * the transfers measured on it.
+ *
+ * Every ap has one exponentially weighted average per RSSI bucket of
+ * BUCKET_DB, plus one over all levels. The same buckets are also kept over
+ * all aps, they give a prediction by level alone for an ap never used.
+ * An update touches a fixed number of fields, and at most maxAps aps are
+ * kept, the least recently used ones are dropped. All methods are
+ * thread-safe.
+ *
+ */
+public class ThroughputModel {
+
+    public static final int DEFAULT_MAX_APS = 1024;
+    public static final int MIN_LEVEL = -100;
+    public static final int MAX_LEVEL = -30;
+    public static final int BUCKET_DB = 5;
+    public static final int BUCKETS = (MAX_LEVEL - MIN_LEVEL) / BUCKET_DB + 1;
+    public static final double ALPHA = 0.3;
+
+    private static final ThroughputModel instance = new ThroughputModel();
+
+    private final Map<String, Rates> aps;
+    private final Rates levels = new Rates(); // all aps
+
+    /**
+     * a predicted throughput
+     */
+    public static final class Prediction {
+        /** bytes per second, -1 if nothing is known */
+        public final long rate;
+        /** weight of the samples behind the prediction */
+        public final double samples;
+        /** bucket (ap at this level), ap (ap at another level), level (any ap) or none */
+        public final String basis;
+
+        Prediction(long rate, double samples, String basis) {
+            this.rate = rate;
+            this.samples = samples;
+            this.basis = basis;
+        }
+
+        @Override
+        public String toString() {
+            return rate + "&" + Math.round(samples * 10) / 10.0 + "&" + basis;
+        }
+    }
+
+    /* averages per bucket and over all buckets */
+    private static class Rates {
+        final float[] rates = new float[BUCKETS];
+        final float[] weights = new float[BUCKETS];
+        float rate = 0;
+        float weight = 0;
+
+        void add(int bucket, double value, double weight) {
+            rates[bucket] = (float)average(rates[bucket], weights[bucket], value, weight);
+            weights[bucket] += weight;
+            rate = (float)average(rate, this.weight, value, weight);
+            this.weight += weight;
+        }
+
+        /* Returns the known bucket closest to bucket, -1 if none */
+        int nearest(int bucket) {
+            for (int d = 1; d < BUCKETS; d++) {
+                if (bucket - d >= 0 && weights[bucket - d] > 0) {
+                    return bucket - d;
+                }
+                if (bucket + d < BUCKETS && weights[bucket + d] > 0) {
+                    return bucket + d;
+                }
+            }
+            return -1;
+        }
+
+        /* the first sample is taken as it is, a sample of weight w counts as w samples */
+        private static double average(double avg, double total, double value, double weight) {
+            if (total <= 0) {
+                return value;
+            }
+            return avg + (1 - Math.pow(1 - ALPHA, weight)) * (value - avg);
+        }
+    }
+
+    public ThroughputModel() {
+        this(DEFAULT_MAX_APS);
+    }
+
+    /**
+     * @param maxAps access points kept
+     */
+    public ThroughputModel(final int maxAps) {
+        if (maxAps <= 0) {
+            throw new IllegalArgumentException("invalid ap number " + maxAps);
+        }
+        aps = new LinkedHashMap<String, Rates>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rates> eldest) {
+                return size() > maxAps;
+            }
+        };
+    }
+
+    /**
+     * Returns the model shared by the services of the app
+     */
+    public static ThroughputModel getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the bucket of a level, levels outside MIN_LEVEL..MAX_LEVEL
+     * go into the first or last one
+     */
+    public static int bucket(int level) {
+        int l = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+        return (l - MIN_LEVEL) / BUCKET_DB;
+    }
+
+    /**
+     * add a measured throughput
+     *
+     * @param bssid ap of the transfer
+     * @param level RSSI during the transfer
+     * @param rate bytes per second
+     * @param weight 1 for a complete download, less for a weaker sample
+     */
+    public synchronized void observe(String bssid, int level, long rate, double weight) {
+        if (rate < 0 || weight <= 0) {
+            return;
+        }
+        int b = bucket(level);
+        Rates r = aps.get(bssid);
+        if (r == null) {
+            r = new Rates();
+            aps.put(bssid, r);
+        }
+        r.add(b, rate, weight);
+        levels.add(b, rate, weight);
+    }
+
+    /**
+     * add a throughput the ap reached at least, e.g. of traffic which did
+     * not use the whole link. It is only added if it is above the current
+     * prediction, so it can raise an estimate but never lower it.
+     *
+     * @param bssid ap of the traffic
+     * @param level RSSI during the traffic
+     * @param rate bytes per second
+     * @param weight less than 1 as the sample is weak
+     * @return false if the rate was not above the prediction
+     */
+    public synchronized boolean observeFloor(String bssid, int level, long rate, double weight) {
+        if (rate <= predict(bssid, level).rate) {
+            return false;
+        }
+        observe(bssid, level, rate, weight);
+        return true;
+    }
+
+    /**
+     * Returns the expected throughput of an ap at a level. Without samples
+     * of the ap at that level, its closest known level is scaled by the
+     * ratio of the two levels over all aps.
+     */
+    public synchronized Prediction predict(String bssid, int level) {
+        int b = bucket(level);
+        Rates r = aps.get(bssid);
+        if (r != null) {
+            if (r.weights[b] > 0) {
+                return new Prediction(Math.round(r.rates[b]), r.weights[b], "bucket");
+            }
+            int n = r.nearest(b);
+            double rate = r.rates[n];
+            if (levels.weights[b] > 0 && levels.rates[n] > 0) {
+                rate *= levels.rates[b] / levels.rates[n];
+            }
+            return new Prediction(Math.round(rate), r.weights[n], "ap");
+        }
+        if (levels.weights[b] > 0) {
+            return new Prediction(Math.round(levels.rates[b]), levels.weights[b], "level");
+        }
+        return new Prediction(-1, 0, "none");
+    }
+
+    public synchronized int size() {
+        return aps.size();
+    }
+}
@@ -0,0 +1,253 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package eit.sdn.sdncontroller.core;
+
+import java.lang.ref.WeakReference;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Cheap tracing of hot paths, e.g. every received packet.
+ *
+ * An event is an id and two long arguments. It is stored with its time in
+ * a preallocated ring buffer of the recording thread, so recording takes
+ * no lock, allocates nothing and formats nothing. The last CAPACITY events
+ * of every thread are kept. Text is only produced by dump().
+ *
+ * Event ids are registered once with the names of the event and its
+ * arguments. An argument name starting with '$' holds up to 8 ascii
+ * characters packed by ascii(), e.g. a message type.
+ *
+ * dump() reads the buffers while other threads keep writing, so an event
+ * written during a dump can come out mixed with the event it replaced.
+ *
+ */
+public final class Tracer {
+
+    public static final int CAPACITY = 1024; // power of two
+    public static final int MAX_EVENT_TYPES = 64;
+    private static final int MAX_RINGS = 32;
+    public static final int MAX_EVENTS = CAPACITY * MAX_RINGS; // all rings full
+
+    private static volatile boolean isEnabled = true;
+    private static final String[][] eventNames = new String[MAX_EVENT_TYPES][];
+    private static int eventNum = 0;
+    private static final List<Ring> rings = new CopyOnWriteArrayList<Ring>();
+    private static final ThreadLocal<Ring> localRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring r = new Ring(Thread.currentThread());
+            addRing(r);
+            return r;
+        }
+    };
+
+    // maps System.nanoTime() to the wall clock
+    private static final long baseWallMs = System.currentTimeMillis();
+    private static final long baseNanos = System.nanoTime();
+
+    /* events of one thread */
+    private static class Ring {
+        final String threadName;
+        final WeakReference<Thread> thread;
+        final long[] times = new long[CAPACITY];
+        final int[] types = new int[CAPACITY];
+        final long[] argsA = new long[CAPACITY];
+        final long[] argsB = new long[CAPACITY];
+        volatile long next = 0;
+
+        Ring(Thread t) {
+            threadName = t.getName();
+            thread = new WeakReference<Thread>(t);
+        }
+
+        void record(int type, long a, long b) {
+            long n = next;
+            int i = (int)(n & (CAPACITY - 1));
+            times[i] = System.nanoTime();
+            types[i] = type;
+            argsA[i] = a;
+            argsB[i] = b;
+            next = n + 1;
+        }
+
+        boolean isAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
+        }
+    }
+
+    /* one event copied out of a ring */
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final String threadName;
+        final int type;
+        final long a;
+        final long b;
+
+        Event(long time, String threadName, int type, long a, long b) {
+            this.time = time;
+            this.threadName = threadName;
+            this.type = type;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return time < other.time ? -1 : (time == other.time ? 0 : 1);
+        }
+    }
+
+    private Tracer() {
+    }
+
+    /**
+     * register an event type, usually into a static final field
+     *
+     * @param name e.g. "packet.received"
+     * @param argA name of the first argument, "$name" for packed ascii
+     * @param argB name of the second argument
+     * @return the id used for record()
+     */
+    public static synchronized int event(String name, String argA, String argB) {
+        for (int i = 0; i < eventNum; i++) {
+            if (eventNames[i][0].equals(name)) {
+                return i;
+            }
+        }
+        if (eventNum == MAX_EVENT_TYPES) {
+            throw new IllegalStateException("too many trace events");
+        }
+        eventNames[eventNum] = new String[] { name, argA, argB };
+        return eventNum++;
+    }
+
+    public static void record(int event, long a, long b) {
+        if (isEnabled) {
+            localRing.get().record(event, a, b);
+        }
+    }
+
+    public static void record(int event, long a) {
+        record(event, a, 0);
+    }
+
+    public static void setEnabled(boolean enabled) {
+        isEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * Returns up to 8 ascii characters of s packed into a long, for event
+     * arguments starting with '$'
+     */
+    public static long ascii(String s) {
+        long packed = 0;
+        int n = Math.min(8, s.length());
+        for (int i = 0; i < n; i++) {
+            packed |= (long)(s.charAt(i) & 0x7f) << (i * 8);
+        }
+        return packed;
+    }
+
+    static String unpackAscii(long packed) {
+        StringBuilder sb = new StringBuilder(8);
+        for (int i = 0; i < 8; i++) {
+            char c = (char)((packed >>> (i * 8)) & 0x7f);
+            if (c == 0) {
+                break;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the last events of all threads in time order, formatted as
+     * "HH:mm:ss.SSS thread event argA=a argB=b"
+     *
+     * @param max number of events, the newest ones are kept
+     */
+    public static List<String> dump(int max) {
+        List<Event> events = new ArrayList<Event>();
+        for (Ring r: rings) {
+            long end = r.next;
+            for (long n = Math.max(0, end - CAPACITY); n < end; n++) {
+                int i = (int)(n & (CAPACITY - 1));
+                events.add(new Event(r.times[i], r.threadName, r.types[i], r.argsA[i], r.argsB[i]));
+            }
+        }
+        Event[] sorted = events.toArray(new Event[events.size()]);
+        Arrays.sort(sorted);
+
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        List<String> lines = new ArrayList<String>();
+        for (int i = Math.max(0, sorted.length - max); i < sorted.length; i++) {
+            lines.add(format(sorted[i], format));
+        }
+        return lines;
+    }
+
+    private static String format(Event e, SimpleDateFormat format) {
+        String[] names;
+        synchronized (Tracer.class) {
+            names = e.type < eventNum ? eventNames[e.type] : new String[] { "event" + e.type, "a", "b" };
+        }
+        long wallMs = baseWallMs + (e.time - baseNanos) / 1000000;
+        StringBuilder sb = new StringBuilder(64);
+        sb.append(format.format(new Date(wallMs))).append(' ').append(e.threadName)
+          .append(' ').append(names[0]);
+        appendArg(sb, names[1], e.a);
+        appendArg(sb, names[2], e.b);
+        return sb.toString();
+    }
+
+    private static void appendArg(StringBuilder sb, String name, long value) {
+        if (name == null) {
+            return;
+        }
+        if (name.startsWith("$")) {
+            sb.append(' ').append(name.substring(1)).append('=').append(unpackAscii(value));
+        } else {
+            sb.append(' ').append(name).append('=').append(value);
+        }
+    }
+
+    /* keep the rings of dead threads only while there is room */
+    private static synchronized void addRing(Ring r) {
+        if (rings.size() >= MAX_RINGS) {
+            for (Ring old: rings) {
+                if (!old.isAlive()) {
+                    rings.remove(old);
+                    if (rings.size() < MAX_RINGS) {
+                        break;
+                    }
+                }
+            }
+        }
+        rings.add(r);
+    }
+}
@@ -0,0 +1,342 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eit.sdn.sdncontroller.core.AgentMessage;
+
+/**
+ * Stand-in for the SDN AP agent which puts load on the client.
+ *
+ * Sends a weighted mix of scan, app, motion and switch messages to the
+ * listener of the client at a fixed rate, for one or more rates in a row,
+ * and receives the replies on the agent port. Every reply is matched to the
+ * oldest unanswered message of its type, which gives the reply latency.
+ * Messages still unanswered GRACE_MS after the last send are lost. The
+ * next rate starts once no reply came for QUIET_MS.
+ *
+ * The rate is kept open-loop: a slow client does not slow down the sender,
+ * so the rate where latency and loss start to grow is the number of orders
+ * per second the client can take.
+ *
+ * Only scan and app are answered by the client. With motion detection
+ * enabled a scan is answered three times, pass 3 as scan_replies then.
+ * switch messages really switch the network of a phone, their weight is 0
+ * unless given; the target should be the current access point.
+ *
+ * usage: AgentLoadGenerator [host|standin] [port] [rates] [duration_s] [mix] [scan_replies] [switch_ssid/bssid]
+ *   rates  orders per second, e.g. 10,50,100
+ *   mix    weights, e.g. scan=1,app=4,motion=1,switch=0
+ * With host "standin" a ListenerStandIn is started on loopback.
+ *
+ */
+public class AgentLoadGenerator {
+
+    private static final int AGENT_PORT = 6777;
+    private static final long GRACE_MS = 5000;
+    private static final long QUIET_MS = 1000;
+
+    private final InetAddress host;
+    private final int port;
+    private final Map<String, Integer> weights;
+    private final Map<String, String> messages = new LinkedHashMap<String, String>();
+    private final Map<String, Integer> repliesPerOrder = new LinkedHashMap<String, Integer>();
+    private final Map<String, ConcurrentLinkedQueue<Long>> pending =
+            new ConcurrentHashMap<String, ConcurrentLinkedQueue<Long>>();
+    private final Random random = new Random(1);
+    private DatagramSocket replySocket;
+    private volatile Step current = null;
+    private final AtomicLong unmatched = new AtomicLong();
+    private volatile long lastAnyReplyNs = 0;
+
+    /**
+     * statistics of one rate
+     */
+    static class Step {
+        final int rate;
+        final Map<String, Long> sent = new LinkedHashMap<String, Long>();
+        final Map<String, List<Long>> latencies = new LinkedHashMap<String, List<Long>>();
+        long expected = 0;
+        long lost = 0;
+        double sendSeconds;
+        double totalSeconds;
+        volatile long lastReplyNs = 0;
+
+        Step(int rate) {
+            this.rate = rate;
+        }
+
+        synchronized void record(String type, long latencyNs) {
+            List<Long> l = latencies.get(type);
+            if (l == null) {
+                l = new ArrayList<Long>();
+                latencies.put(type, l);
+            }
+            l.add(latencyNs);
+        }
+
+        synchronized long[] sortedLatencies(String type) {
+            List<Long> all = new ArrayList<Long>();
+            for (Map.Entry<String, List<Long>> e: latencies.entrySet()) {
+                if (type == null || e.getKey().equals(type)) {
+                    all.addAll(e.getValue());
+                }
+            }
+            long[] sorted = new long[all.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = all.get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    public AgentLoadGenerator(InetAddress host, int port, Map<String, Integer> weights,
+                              int scanReplies, String switchTarget) {
+        this.host = host;
+        this.port = port;
+        this.weights = weights;
+        String[] target = switchTarget.split("/", 2);
+        messages.put("scan", "scan");
+        messages.put("app", "app");
+        messages.put("motion", "motion");
+        messages.put("switch", "switch|" + target[0] + "|" + (target.length > 1 ? target[1] : ""));
+        repliesPerOrder.put("scan", scanReplies);
+        repliesPerOrder.put("app", 1);
+        for (String type: messages.keySet()) {
+            pending.put(type, new ConcurrentLinkedQueue<Long>());
+        }
+    }
+
+    /**
+     * start receiving replies on the agent port
+     */
+    public void start() throws IOException {
+        replySocket = new DatagramSocket(AGENT_PORT);
+        replySocket.setSoTimeout(200);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "load-replies");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        replySocket.close();
+    }
+
+    private void receive() {
+        byte[] buf = new byte[8192];
+        while (!replySocket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                replySocket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                break; // closed
+            }
+            long now = System.nanoTime();
+            lastAnyReplyNs = now;
+            String[] fields = AgentMessage.split(new String(packet.getData(), packet.getOffset(),
+                                                            packet.getLength()).trim());
+            // "s|type|mac|..."
+            ConcurrentLinkedQueue<Long> queue = fields.length > 1 ? pending.get(fields[1]) : null;
+            Long sentNs = queue == null ? null : queue.poll();
+            Step step = current;
+            if (sentNs == null || step == null) {
+                unmatched.incrementAndGet(); // telemetry, late or unknown replies
+                continue;
+            }
+            step.record(fields[1], now - sentNs);
+            step.lastReplyNs = now;
+        }
+    }
+
+    /**
+     * send orders at a fixed rate and wait for the replies
+     *
+     * @param rate orders per second
+     * @param durationS sending time
+     */
+    public Step run(int rate, int durationS) throws IOException, InterruptedException {
+        // late replies of the previous rate would be matched to new orders
+        long quietDeadline = System.nanoTime() + 6 * GRACE_MS * 1000000L;
+        while (System.nanoTime() - lastAnyReplyNs < QUIET_MS * 1000000L
+                && System.nanoTime() < quietDeadline) {
+            Thread.sleep(50);
+        }
+
+        Step step = new Step(rate);
+        for (ConcurrentLinkedQueue<Long> queue: pending.values()) {
+            queue.clear();
+        }
+        current = step;
+
+        int totalWeight = 0;
+        for (int w: weights.values()) {
+            totalWeight += w;
+        }
+        long intervalNs = 1000000000L / rate;
+        long orders = (long)rate * durationS;
+        DatagramSocket socket = new DatagramSocket();
+        long start = System.nanoTime();
+        for (long i = 0; i < orders; i++) {
+            long wait = start + i * intervalNs - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+            }
+
+            String type = pick(totalWeight);
+            byte[] data = messages.get(type).getBytes();
+            long now = System.nanoTime();
+            Integer replies = repliesPerOrder.get(type);
+            for (int r = 0; replies != null && r < replies; r++) {
+                pending.get(type).add(now);
+                step.expected++;
+            }
+            socket.send(new DatagramPacket(data, data.length, host, port));
+            Long n = step.sent.get(type);
+            step.sent.put(type, n == null ? 1 : n + 1);
+        }
+        long sendEnd = System.nanoTime();
+        socket.close();
+
+        // wait for the remaining replies
+        long deadline = sendEnd + GRACE_MS * 1000000L;
+        while (System.nanoTime() < deadline && pendingNum() > 0) {
+            Thread.sleep(20);
+        }
+        current = null;
+        step.lost = pendingNum();
+        step.sendSeconds = (sendEnd - start) / 1e9;
+        step.totalSeconds = (Math.max(sendEnd, step.lastReplyNs) - start) / 1e9;
+        return step;
+    }
+
+    private String pick(int totalWeight) {
+        int n = random.nextInt(totalWeight);
+        for (Map.Entry<String, Integer> e: weights.entrySet()) {
+            n -= e.getValue();
+            if (n < 0) {
+                return e.getKey();
+            }
+        }
+        return "scan"; // not reached
+    }
+
+    private long pendingNum() {
+        long n = 0;
+        for (ConcurrentLinkedQueue<Long> queue: pending.values()) {
+            n += queue.size();
+        }
+        return n;
+    }
+
+    /** Returns the value of a nearest-rank percentile in ms */
+    static String percentileMs(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return "-";
+        }
+        int rank = (int)Math.ceil(p / 100.0 * sorted.length);
+        return String.format("%.1f", sorted[Math.max(0, rank - 1)] / 1e6);
+    }
+
+    static void print(Step s) {
+        long sent = 0;
+        for (long n: s.sent.values()) {
+            sent += n;
+        }
+        long[] all = s.sortedLatencies(null);
+        System.out.printf("%6d %8.1f %9.1f %7d %7d %6.1f%% %8s %8s %8s %8s%n",
+                s.rate, sent / s.sendSeconds, all.length / s.totalSeconds,
+                s.expected, s.lost, s.expected > 0 ? 100.0 * s.lost / s.expected : 0.0,
+                percentileMs(all, 50), percentileMs(all, 90), percentileMs(all, 99),
+                percentileMs(all, 100));
+        for (String type: s.sent.keySet()) {
+            long[] l = s.sortedLatencies(type);
+            System.out.printf("       %-6s sent %d, replies %d, p50 %s ms, p99 %s ms%n",
+                    type, s.sent.get(type), l.length, percentileMs(l, 50), percentileMs(l, 99));
+        }
+    }
+
+    static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<String, Integer>();
+        for (String part: mix.split(",")) {
+            String[] kv = part.split("=");
+            int w = Integer.parseInt(kv[1].trim());
+            if (w > 0) {
+                weights.put(kv[0].trim().toLowerCase(), w);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("empty mix: " + mix);
+        }
+        return weights;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String hostName = args.length > 0 ? args[0] : "standin";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 7755;
+        String rates = args.length > 2 ? args[2] : "10,50,100,200";
+        int durationS = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        Map<String, Integer> mix = parseMix(args.length > 4 ? args[4] : "scan=1,app=4,motion=1,switch=0");
+        int scanReplies = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+        String switchTarget = args.length > 6 ? args[6] : "sdn-load/00:00:00:00:00:00";
+
+        ListenerStandIn standIn = null;
+        if (hostName.equals("standin")) {
+            standIn = new ListenerStandIn(AGENT_PORT, 1500, 20, 20);
+            port = standIn.start(0);
+            hostName = "127.0.0.1";
+        }
+
+        AgentLoadGenerator generator = new AgentLoadGenerator(InetAddress.getByName(hostName), port,
+                mix, scanReplies, switchTarget);
+        generator.start();
+        System.out.println("target " + hostName + ":" + port + ", mix " + mix + ", " + durationS + " s per rate");
+        System.out.println("  rate   sent/s  replies/s  expect    lost   loss   p50_ms   p90_ms   p99_ms   max_ms");
+        try {
+            for (String rate: rates.split(",")) {
+                print(generator.run(Integer.parseInt(rate.trim()), durationS));
+            }
+        } finally {
+            generator.stop();
+            if (standIn != null) {
+                standIn.stop();
+            }
+        }
+        if (generator.unmatched.get() > 0) {
+            System.out.println(generator.unmatched.get() + " replies without an order, e.g. late or telemetry");
+        }
+    }
+}
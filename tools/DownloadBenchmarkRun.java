@@ -0,0 +1,70 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+import java.io.File;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eit.sdn.sdncontroller.DownloadBenchmark;
+
+/**
+ * Run DownloadBenchmark against a throttled HttpStandIn with a fixed
+ * response delay, with and without keep-alive, and print the same report
+ * as the benchmark message of the app.
+ *
+ * usage: DownloadBenchmarkRun [size_KB] [rate_KBps] [delay_ms] [runs] [warmup_runs] [pause_ms]
+ *
+ */
+public class DownloadBenchmarkRun {
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 2048) * 1024;
+        long rate = (args.length > 1 ? Long.parseLong(args[1]) : 4096) * 1024;
+        long delay = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        int runs = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int warmupRuns = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+        long pause = args.length > 5 ? Long.parseLong(args[5]) : 100;
+
+        File file = File.createTempFile("benchmark", ".tmp");
+        file.deleteOnExit();
+        System.out.println("size " + size / 1024 + " KB, " + rate / 1024 + " KB/s, response delay "
+                + delay + " ms, " + runs + " runs after " + warmupRuns + " warm-up runs");
+
+        for (boolean isKeepAlive: new boolean[] {false, true}) {
+            HttpStandIn standIn = new HttpStandIn(size, rate, 0);
+            standIn.setFirstByteDelay(delay);
+            HttpServer server = standIn.start(0);
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.tmp";
+            try {
+                DownloadBenchmark benchmark = new DownloadBenchmark(url, file.getPath());
+                benchmark.setRuns(runs, warmupRuns);
+                benchmark.setKeepAlive(isKeepAlive);
+                benchmark.setPauseMs(pause);
+                List<DownloadBenchmark.Run> results = benchmark.run();
+
+                System.out.println();
+                System.out.println("keep-alive " + isKeepAlive + ", " + standIn.getConnectionCount()
+                        + " connections for " + (runs + warmupRuns) + " runs");
+                System.out.println("KB/s min&median&p90&max " + DownloadBenchmark.throughputSummary(results));
+                System.out.println("ttfb ms min&median&p90&max " + DownloadBenchmark.ttfbSummary(results));
+                System.out.println(DownloadBenchmark.toTable(results));
+            } finally {
+                server.stop(0);
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eit.sdn.sdncontroller.ResumableDownload;
+
+/**
+ * Compare the CPU time per MB of the stream and the FileChannel write path
+ * of ResumableDownload against an unthrottled HttpStandIn.
+ *
+ * The download runs in the main thread, so its thread CPU time covers
+ * reading from the socket and writing the file, but not the server.
+ *
+ * usage: DownloadWriteBench [size_MB] [runs]
+ *
+ */
+public class DownloadWriteBench {
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 64) * 1024 * 1024;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        HttpServer server = new HttpStandIn(size, 0, 0).start(0);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.tmp";
+        File file = File.createTempFile("write", ".tmp");
+        file.deleteOnExit();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        double mb = size / 1024.0 / 1024.0;
+        try {
+            // warm-up
+            download(url, file, false);
+            download(url, file, true);
+
+            double[][] cpu = new double[2][runs];
+            double[][] rate = new double[2][runs];
+            for (int i = 0; i < runs; i++) {
+                for (int mode = 0; mode < 2; mode++) { // interleaved
+                    long cpuStart = threads.getCurrentThreadCpuTime();
+                    long start = System.nanoTime();
+                    download(url, file, mode == 1);
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    cpu[mode][i] = (threads.getCurrentThreadCpuTime() - cpuStart) / 1e6 / mb;
+                    rate[mode][i] = mb / seconds;
+                    HttpStandIn.verify(file, size);
+                }
+            }
+
+            System.out.println("size " + (long)mb + " MB, " + runs + " runs, medians");
+            System.out.println("path     cpu_ms/MB  MB/s");
+            System.out.printf("stream   %9.2f  %6.1f%n", median(cpu[0]), median(rate[0]));
+            System.out.printf("channel  %9.2f  %6.1f%n", median(cpu[1]), median(rate[1]));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static void download(String url, File file, boolean isChannelWrite) throws Exception {
+        file.delete();
+        ResumableDownload download = new ResumableDownload(url, file.getPath(), new ResumableDownload.Callback() {
+            @Override
+            public boolean isOnline() {
+                return true;
+            }
+
+            @Override
+            public void onProgress(int count, long downloaded, long length) {
+            }
+
+            @Override
+            public void onStateChanged(ResumableDownload.State state) {
+            }
+        });
+        download.setChannelWrite(isChannelWrite);
+        if (download.run() != ResumableDownload.State.COMPLETED) {
+            throw new IllegalStateException("download did not complete");
+        }
+    }
+
+    private static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,214 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the download test server.
+ *
+ * Serves one generated file of a given size on every path, with Range,
+ * ETag and Last-Modified support. Every request is throttled on its own,
+ * so parallel connections add up like several TCP flows on a real link.
+ * Every n-th request can be made slower to emulate a bad flow.
+ *
+ * usage: java tools/HttpStandIn.java [port] [size_bytes] [rate_KBps] [slow_every_n]
+ *
+ */
+public class HttpStandIn {
+
+    private static final int CHUNK = 8 * 1024;
+    private static final String ETAG = "\"standin-1\"";
+    private static final String LAST_MODIFIED = "Wed, 01 Jan 2014 00:00:00 GMT";
+
+    private final long size;
+    private final long rate;      // bytes per second per request, 0 = unlimited
+    private final int slowEvery;  // every n-th request gets a quarter of the rate
+    private final AtomicInteger requests = new AtomicInteger();
+    private final Set<String> clients = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private long firstByteDelayMs = 0;
+
+    public HttpStandIn(long size, long rate, int slowEvery) {
+        this.size = size;
+        this.rate = rate;
+        this.slowEvery = slowEvery;
+    }
+
+    /** delay every response by a fixed time, e.g. to emulate a round trip */
+    public void setFirstByteDelay(long ms) {
+        firstByteDelayMs = ms;
+    }
+
+    /** Returns the number of TCP connections seen, for checking keep-alive */
+    public int getConnectionCount() {
+        return clients.size();
+    }
+
+    /** Returns the byte at a given offset of the generated file */
+    public static byte byteAt(long offset) {
+        return (byte)((offset * 31 + 7) & 0xff);
+    }
+
+    public HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 64);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "HttpStandIn");
+                t.setDaemon(true); // do not keep the JVM alive after stop()
+                return t;
+            }
+        }));
+        server.start();
+        return server;
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        int n = requests.incrementAndGet();
+        clients.add(exchange.getRemoteAddress().toString());
+        if (firstByteDelayMs > 0) {
+            try {
+                Thread.sleep(firstByteDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long first = 0;
+        long last = size - 1;
+        int code = 200;
+
+        Headers headers = exchange.getResponseHeaders();
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("ETag", ETAG);
+        headers.set("Last-Modified", LAST_MODIFIED);
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        boolean isRangeValid = ifRange == null || ifRange.equals(ETAG) || ifRange.equals(LAST_MODIFIED);
+        if (range != null && range.startsWith("bytes=") && isRangeValid) {
+            String[] bounds = range.substring(6).split("-", -1);
+            first = Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                last = Math.min(last, Long.parseLong(bounds[1]));
+            }
+            if (first > last) {
+                headers.set("Content-Range", "bytes */" + size);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            headers.set("Content-Range", "bytes " + first + "-" + last + "/" + size);
+            code = 206;
+        }
+
+        long length = last - first + 1;
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            headers.set("Content-Length", Long.toString(length));
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+            return;
+        }
+
+        long requestRate = (slowEvery > 0 && n % slowEvery == 0) ? rate / 4 : rate;
+        exchange.sendResponseHeaders(code, length);
+        OutputStream out = exchange.getResponseBody();
+        byte[] buf = new byte[CHUNK];
+        long start = System.nanoTime();
+        long sent = 0;
+        try {
+            while (sent < length) {
+                int count = (int)Math.min(CHUNK, length - sent);
+                for (int i = 0; i < count; i++) {
+                    buf[i] = byteAt(first + sent + i);
+                }
+                out.write(buf, 0, count);
+                sent += count;
+
+                if (requestRate > 0) {
+                    long due = start + sent * 1000000000L / requestRate;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // client closed the connection early, e.g. after a steal
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * check that a downloaded file has the generated content
+     *
+     * @throws IOException if the length or any byte differs
+     */
+    public static void verify(File file, long size) throws IOException {
+        if (file.length() != size) {
+            throw new IOException("wrong file length " + file.length());
+        }
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            byte[] buf = new byte[64 * 1024];
+            long offset = 0;
+            int count;
+            while ((count = f.read(buf)) != -1) {
+                for (int i = 0; i < count; i++) {
+                    if (buf[i] != byteAt(offset + i)) {
+                        throw new IOException("wrong content at byte " + (offset + i));
+                    }
+                }
+                offset += count;
+            }
+        } finally {
+            f.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        long size = args.length > 1 ? Long.parseLong(args[1]) : 32L * 1024 * 1024;
+        long rate = args.length > 2 ? Long.parseLong(args[2]) * 1024 : 1024L * 1024;
+        int slowEvery = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        new HttpStandIn(size, rate, slowEvery).start(port);
+        System.out.println("serving " + size + " bytes on http://127.0.0.1:" + port
+                + "/ at " + rate / 1024 + " KB/s per request");
+    }
+}
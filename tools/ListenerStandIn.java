@@ -0,0 +1,167 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import eit.sdn.sdncontroller.core.AgentMessage;
+import eit.sdn.sdncontroller.core.AgentReply;
+
+/**
+ * Loopback stand-in for the UDP listener of the client, for trying
+ * AgentLoadGenerator without a phone.
+ *
+ * Messages are received on one thread, like in UDPListeningService. An app
+ * message blocks that thread for app_ms before its reply, a scan is
+ * answered scan_ms later from another thread, like the scan broadcast.
+ * switch and motion messages are only counted. Replies go to 127.0.0.1 on
+ * the agent port.
+ *
+ * usage: ListenerStandIn [port] [agent_port] [scan_ms] [app_ms] [access_points]
+ *
+ */
+public class ListenerStandIn {
+
+    private static final String MAC = "02:00:00:00:00:00";
+
+    private final int agentPort;
+    private final long scanMs;
+    private final long appMs;
+    private final int accessPoints;
+    private DatagramSocket socket;
+    private DatagramSocket replySocket;
+    private ScheduledExecutorService scanner;
+    private volatile long received = 0;
+
+    public ListenerStandIn(int agentPort, long scanMs, long appMs, int accessPoints) {
+        this.agentPort = agentPort;
+        this.scanMs = scanMs;
+        this.appMs = appMs;
+        this.accessPoints = accessPoints;
+    }
+
+    /** Returns the number of messages received so far */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * bind the listener and start receiving on a daemon thread
+     *
+     * @param port listening port, 0 for any free one
+     * @return the bound port
+     */
+    public int start(int port) throws IOException {
+        socket = new DatagramSocket(new InetSocketAddress("127.0.0.1", port));
+        replySocket = new DatagramSocket();
+        scanner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "standin-scan");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                listen();
+            }
+        }, "standin-listener");
+        t.setDaemon(true);
+        t.start();
+        return socket.getLocalPort();
+    }
+
+    public void stop() {
+        socket.close();
+        scanner.shutdownNow();
+        replySocket.close();
+    }
+
+    private void listen() {
+        byte[] buf = new byte[1024];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                break; // closed
+            }
+            received++;
+            String message = new String(packet.getData(), packet.getOffset(), packet.getLength()).trim();
+            String type = AgentMessage.parse(message).getType();
+
+            if (type.equals("scan")) {
+                scanner.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        AgentReply reply = new AgentReply("scan", MAC).add("static");
+                        for (int i = 0; i < accessPoints; i++) {
+                            reply.add("ap-" + i, String.format("00:11:22:33:44:%02x", i), -40 - i);
+                        }
+                        send(reply.toString());
+                    }
+                }, scanMs, TimeUnit.MILLISECONDS);
+            } else if (type.equals("app")) {
+                sleep(appMs);
+                send(new AgentReply("app", MAC).add("web").toString());
+            }
+        }
+    }
+
+    private void send(String message) {
+        byte[] data = message.getBytes();
+        try {
+            replySocket.send(new DatagramPacket(data, data.length,
+                    InetAddress.getByName("127.0.0.1"), agentPort));
+        } catch (IOException e) {
+            // stopped, or nobody listening
+        }
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 7755;
+        int agentPort = args.length > 1 ? Integer.parseInt(args[1]) : 6777;
+        long scanMs = args.length > 2 ? Long.parseLong(args[2]) : 1500;
+        long appMs = args.length > 3 ? Long.parseLong(args[3]) : 20;
+        int accessPoints = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+        new ListenerStandIn(agentPort, scanMs, appMs, accessPoints).start(port);
+        System.out.println("listening on udp 127.0.0.1:" + port + ", replies to port " + agentPort
+                + ", scan " + scanMs + " ms, app " + appMs + " ms");
+        Thread.currentThread().join();
+    }
+}
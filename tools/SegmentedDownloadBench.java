@@ -0,0 +1,64 @@
+/**
+*    Copyright 2014 University of Helsinki
+*
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+import java.io.File;
+
+import com.sun.net.httpserver.HttpServer;
+
+import eit.sdn.sdncontroller.SegmentedDownloader;
+
+/**
+ * Compare single-connection and segmented downloads against HttpStandIn
+ * with per-request throttling, and check the content of every result.
+ *
+ * usage: SegmentedDownloadBench [size_MB] [rate_KBps] [slow_every_n] [connections...]
+ *
+ */
+public class SegmentedDownloadBench {
+
+    public static void main(String[] args) throws Exception {
+        long size = (args.length > 0 ? Long.parseLong(args[0]) : 8) * 1024 * 1024;
+        long rate = (args.length > 1 ? Long.parseLong(args[1]) : 1024) * 1024;
+        int slowEvery = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        int[] connections = {1, 2, 4, 8};
+        if (args.length > 3) {
+            connections = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                connections[i - 3] = Integer.parseInt(args[i]);
+            }
+        }
+
+        HttpServer server = new HttpStandIn(size, rate, slowEvery).start(0);
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.tmp";
+        File file = File.createTempFile("segmented", ".tmp");
+        file.deleteOnExit();
+
+        System.out.println("size " + size / 1024 / 1024 + " MB, " + rate / 1024
+                + " KB/s per connection, every " + slowEvery + ". connection slow");
+        System.out.println("connections  seconds  MB/s");
+        try {
+            for (int n: connections) {
+                long start = System.nanoTime();
+                new SegmentedDownloader(url, file.getPath(), n).download();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                HttpStandIn.verify(file, size);
+                System.out.printf("%11d  %7.2f  %5.2f%n", n, seconds, size / seconds / 1024 / 1024);
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+}